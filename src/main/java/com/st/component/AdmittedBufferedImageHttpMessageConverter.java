@@ -0,0 +1,83 @@
+package com.st.component;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.converter.BufferedImageHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * BufferedImage message converter whose decodes of request bodies are
+ * admitted by the decode scheduler: the size of the image is read from its
+ * header, and the decode waits for (or is rejected without) the memory it
+ * needs. The decoded image is referenced by the request until it completes
+ * (it is encoded again to be stored), so the memory is given back then.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class AdmittedBufferedImageHttpMessageConverter extends BufferedImageHttpMessageConverter {
+
+    private static final String PERMIT_CALLBACK =
+            AdmittedBufferedImageHttpMessageConverter.class.getName() + ".permit";
+
+    private final DecodeScheduler decodeScheduler;
+
+    /**
+     * Constructor.
+     * @param decodeScheduler the decode scheduler.
+     */
+    public AdmittedBufferedImageHttpMessageConverter(DecodeScheduler decodeScheduler) {
+        this.decodeScheduler = decodeScheduler;
+    }
+
+    @Override
+    public BufferedImage read(Class<? extends BufferedImage> clazz, HttpInputMessage inputMessage)
+            throws IOException, HttpMessageNotReadableException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(inputMessage.getBody())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new HttpMessageNotReadableException("Unsupported image format.");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                DecodeScheduler.Permit permit = decodeScheduler.admit(
+                        DecodeScheduler.estimateBytes(reader.getWidth(0), reader.getHeight(0)));
+                final BufferedImage image;
+                try {
+                    image = reader.read(0, reader.getDefaultReadParam());
+                } catch (IOException | RuntimeException e) {
+                    permit.release();
+                    throw e;
+                }
+                releaseOnCompletion(permit);
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Helper method to give back the memory of a decoded image when the
+    // request completes, or right away outside of a request
+    private static void releaseOnCompletion(final DecodeScheduler.Permit permit) {
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request == null) {
+            permit.release();
+            return;
+        }
+        request.registerDestructionCallback(PERMIT_CALLBACK, new Runnable() {
+            @Override
+            public void run() {
+                permit.release();
+            }
+        }, RequestAttributes.SCOPE_REQUEST);
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.st.component;
+
+import com.st.exceptions.CustomBadRequestException;
+import com.st.exceptions.CustomServiceUnavailableException;
+import com.st.model.DecodeStatistics;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control of image decodes and encodes. Each decode is admitted
+ * against a memory budget with an estimate of its pixel memory (made from the
+ * image header, before decoding), and gives it back when done. Decodes that
+ * do not fit wait in FIFO order; request threads wait a bounded time in a
+ * bounded queue and are otherwise rejected (503 with Retry-After), background
+ * work waits until it is admitted. Request decodes larger than the whole
+ * budget are rejected (400); background ones are admitted alone.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class DecodeScheduler {
+
+    private static final Logger logger = Logger.getLogger(DecodeScheduler.class);
+
+    /** Bytes per pixel of a decoded image (TYPE_INT_RGB / TYPE_INT_ARGB). */
+    public static final int BYTES_PER_PIXEL = 4;
+
+    /** The budget is accounted in units of this many bytes. */
+    private static final int UNIT = 1024;
+
+    /**
+     * Admitted memory, given back with release() (in a finally block).
+     */
+    public class Permit {
+
+        private final int units;
+        private boolean released = false;
+
+        Permit(int units) {
+            this.units = units;
+        }
+
+        /**
+         * Gives back the admitted memory. Further calls do nothing.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                budget.release(units);
+            }
+        }
+    }
+
+    private final Semaphore budget;
+
+    private final int budgetUnits;
+
+    private final long maxWaitMillis;
+
+    private final int maxQueued;
+
+    private final int retryAfterSeconds;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitedMillis = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param budgetBytes the memory available to decodes at the same time.
+     * @param maxWaitMillis how long a request waits to be admitted.
+     * @param maxQueued the max. no. of requests waiting to be admitted.
+     * @param retryAfterSeconds the Retry-After sent when a request is rejected.
+     */
+    public DecodeScheduler(long budgetBytes, long maxWaitMillis, int maxQueued,
+            int retryAfterSeconds) {
+        this.budgetUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budgetBytes / UNIT));
+        // Fair, so that large decodes are not starved by small ones.
+        this.budget = new Semaphore(budgetUnits, true);
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxQueued = maxQueued;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Returns the estimated memory of a decoded image.
+     * @param width the width in pixels.
+     * @param height the height in pixels.
+     * @return the bytes.
+     */
+    public static long estimateBytes(long width, long height) {
+        return width * height * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Admits a decode of a request thread, waiting a bounded time.
+     * @param bytes the estimated memory of the decode.
+     * @return the permit, to be closed when the decoded image is released.
+     * @throws CustomBadRequestException if the decode is larger than the budget.
+     * @throws CustomServiceUnavailableException if the decode was not admitted.
+     */
+    public Permit admit(long bytes) {
+        if (bytes > (long) budgetUnits * UNIT) {
+            rejected.incrementAndGet();
+            logger.info("Rejected decode of " + bytes + " bytes: larger than the budget");
+            throw new CustomBadRequestException("The image is too large to be processed.");
+        }
+        final int units = units(bytes);
+        try {
+            // Timed, unlike tryAcquire(units), so that it does not barge
+            // ahead of the decodes already waiting.
+            if (budget.tryAcquire(units, 0, TimeUnit.MILLISECONDS)) {
+                admitted.incrementAndGet();
+                return new Permit(units);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return reject(bytes, "Interrupted waiting for memory to process the image.");
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return reject(bytes, "Too many images are being processed.");
+        }
+        final long started = System.currentTimeMillis();
+        try {
+            if (!budget.tryAcquire(units, maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                return reject(bytes, "Timed out waiting for memory to process the image.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return reject(bytes, "Interrupted waiting for memory to process the image.");
+        } finally {
+            queued.decrementAndGet();
+        }
+        waited(System.currentTimeMillis() - started);
+        return new Permit(units);
+    }
+
+    /**
+     * Admits a decode of a background thread, waiting until there is memory.
+     * @param bytes the estimated memory of the decode.
+     * @return the permit, to be closed when the decoded image is released.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Permit await(long bytes) throws InterruptedException {
+        final int units = units(bytes);
+        final long started = System.currentTimeMillis();
+        queued.incrementAndGet();
+        try {
+            budget.acquire(units);
+        } finally {
+            queued.decrementAndGet();
+        }
+        waited(System.currentTimeMillis() - started);
+        return new Permit(units);
+    }
+
+    // Helper method to convert bytes to budget units. A background decode
+    // larger than the whole budget is admitted alone.
+    private int units(long bytes) {
+        return (int) Math.max(1, Math.min(budgetUnits, (bytes + UNIT - 1) / UNIT));
+    }
+
+    // Helper method to count an admitted decode and how long it waited
+    private void waited(long millis) {
+        admitted.incrementAndGet();
+        totalWaitMillis.addAndGet(millis);
+        long max = maxWaitedMillis.get();
+        while (millis > max && !maxWaitedMillis.compareAndSet(max, millis)) {
+            max = maxWaitedMillis.get();
+        }
+    }
+
+    // Helper method to reject a decode
+    private Permit reject(long bytes, String reason) {
+        rejected.incrementAndGet();
+        logger.info("Rejected decode of " + bytes + " bytes: " + reason);
+        throw new CustomServiceUnavailableException(reason + " Please retry later.",
+                retryAfterSeconds);
+    }
+
+    /**
+     * Returns a snapshot of the state and counters of the scheduler.
+     * @return the statistics.
+     */
+    public DecodeStatistics getStatistics() {
+        DecodeStatistics stats = new DecodeStatistics();
+        stats.setBudgetBytes((long) budgetUnits * UNIT);
+        stats.setBytesInUse((long) (budgetUnits - budget.availablePermits()) * UNIT);
+        stats.setQueued(queued.get());
+        final long n = admitted.get();
+        stats.setAdmitted(n);
+        stats.setRejected(rejected.get());
+        stats.setAverageWaitMillis(n == 0 ? 0 : totalWaitMillis.get() / n);
+        stats.setMaxWaitMillis(maxWaitedMillis.get());
+        return stats;
+    }
+
+}
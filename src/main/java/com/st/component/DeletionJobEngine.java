@@ -0,0 +1,396 @@
+package com.st.component;
+
+import com.st.model.Account;
+import com.st.model.Dataset;
+import com.st.model.DatasetInfo;
+import com.st.model.DeletionJob;
+import com.st.model.FileDeleteResult;
+import com.st.serviceImpl.DatasetServiceImpl;
+import com.st.serviceImpl.FileServiceImpl;
+import com.st.serviceImpl.MongoUserDetailsServiceImpl;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+/**
+ * Runs the deletion jobs stored in MongoDB in the background. Jobs are
+ * claimed with a lock that expires, so jobs left by a crashed node are
+ * resumed by any node once their lock expires. Every step of a job is
+ * idempotent and removes its work from the job document when done.
+ *
+ * Several jobs run in parallel, and the datasets and the S3 multi-object
+ * deletes of a job run in parallel on a separate pool. Failed files are
+ * retried with the job, up to a max. no. of attempts.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class DeletionJobEngine {
+
+    private static final Logger logger = Logger.getLogger(DeletionJobEngine.class);
+
+    /** Max. no. of keys of a multi-object delete on S3. */
+    private static final int BATCH_SIZE = 1000;
+
+    /** Time a claimed job stays locked without progress before it is resumed elsewhere. */
+    private static final long LOCK_MILLIS = 5 * 60 * 1000;
+
+    @Autowired
+    MongoOperations mongoTemplateUserDB;
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    @Autowired
+    FileServiceImpl filesService;
+
+    @Autowired
+    DatasetServiceImpl datasetService;
+
+    @Autowired
+    GrantIndex grantIndex;
+
+    @Autowired
+    MongoUserDetailsServiceImpl customUserDetailsService;
+
+    private final long pollSeconds;
+
+    private final int maxAttempts;
+
+    private final Semaphore slots;
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService jobs;
+
+    private ExecutorService batches;
+
+    private final Runnable poller = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    /**
+     * Constructor.
+     * @param pollSeconds the interval between polls for new or abandoned jobs.
+     * @param parallelism the max. no. of jobs (and of batches) run at the same time.
+     * @param maxAttempts the max. no. of attempts of a job before it fails.
+     */
+    public DeletionJobEngine(long pollSeconds, int parallelism, int maxAttempts) {
+        this.pollSeconds = Math.max(pollSeconds, 1);
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.slots = new Semaphore(Math.max(parallelism, 1));
+    }
+
+    /**
+     * Starts polling for jobs.
+     */
+    @PostConstruct
+    public void start() {
+        final int parallelism = slots.availablePermits();
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("deletion-poll"));
+        jobs = Executors.newFixedThreadPool(parallelism, threadFactory("deletion-job"));
+        batches = Executors.newFixedThreadPool(parallelism, threadFactory("deletion-batch"));
+        scheduler.scheduleWithFixedDelay(poller, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the workers (bean destroy method). Interrupted jobs are resumed
+     * when their lock expires.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        jobs.shutdownNow();
+        batches.shutdownNow();
+    }
+
+    /**
+     * Polls for jobs right away, e.g. after a job is submitted.
+     */
+    public void wakeUp() {
+        scheduler.execute(poller);
+    }
+
+    // Helper method to claim and start jobs while there are free slots
+    private void poll() {
+        while (slots.tryAcquire()) {
+            final DeletionJob job;
+            try {
+                job = claim();
+            } catch (RuntimeException e) {
+                slots.release();
+                logger.error("Failed to poll deletion jobs", e);
+                return;
+            }
+            if (job == null) {
+                slots.release();
+                return;
+            }
+            jobs.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runJob(job);
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        }
+    }
+
+    // Helper method to lock the oldest pending job, or a running job whose lock expired
+    private DeletionJob claim() {
+        final Date now = new Date();
+        Query query = new Query(Criteria.where("status")
+                .in(DeletionJob.STATUS_PENDING, DeletionJob.STATUS_RUNNING)
+                .orOperator(Criteria.where("locked_until").is(null),
+                        Criteria.where("locked_until").lt(now)));
+        query.with(new Sort(Sort.Direction.ASC, "created_at"));
+        Update update = new Update()
+                .set("status", DeletionJob.STATUS_RUNNING)
+                .set("locked_until", new Date(now.getTime() + LOCK_MILLIS))
+                .set("last_modified", now)
+                .inc("attempts", 1);
+        return mongoTemplateUserDB.findAndModify(query, update, 
+                new FindAndModifyOptions().returnNew(true), DeletionJob.class);
+    }
+
+    // Helper method to run the steps of a job. Each step starts from the
+    // state stored in the job document.
+    private void runJob(DeletionJob job) {
+        final String id = job.getId();
+        logger.info("Running deletion job " + id + " of " + job.getKind() + " " 
+                + job.getTarget_id() + ", attempt " + job.getAttempts());
+        try {
+            if (!job.isPlanned()) {
+                plan(job);
+            }
+            if (DeletionJob.KIND_ACCOUNT.equals(job.getKind())) {
+                deleteAccount(job.getTarget_id());
+            }
+            deleteDatasets(id);
+            if (DeletionJob.KIND_ACCOUNT.equals(job.getKind())) {
+                clearAccount(job.getTarget_id(), job.isCascade());
+            }
+            deleteFiles(id);
+            finish(id, null);
+        } catch (RuntimeException e) {
+            logger.error("Deletion job " + id + " failed", e);
+            finish(id, e.toString());
+        }
+    }
+
+    // Helper method to record the datasets to delete
+    private void plan(DeletionJob job) {
+        List<String> datasetIds = new ArrayList<>();
+        if (DeletionJob.KIND_DATASET.equals(job.getKind())) {
+            datasetIds.add(job.getTarget_id());
+        } else if (job.isCascade()) {
+            // The grants are read from datasetinfo, as grantedAccounts may
+            // still hold revoked accounts before it is migrated.
+            Query query = new Query(Criteria.where("account_id").is(job.getTarget_id()));
+            query.fields().include("dataset_id");
+            for (DatasetInfo dsi : mongoTemplateUserDB.find(query, DatasetInfo.class)) {
+                datasetIds.add(dsi.getDataset_id());
+            }
+        }
+        mongoTemplateUserDB.updateFirst(byId(job.getId()), heartbeat()
+                .set("pending_datasets", datasetIds)
+                .set("planned", true), DeletionJob.class);
+    }
+
+    // Helper method to delete the pending datasets of a job in parallel
+    private void deleteDatasets(final String jobId) {
+        List<String> datasetIds = load(jobId).getPending_datasets();
+        if (datasetIds == null || datasetIds.isEmpty()) {
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(datasetIds.size());
+        for (final String datasetId : datasetIds) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    deleteDataset(jobId, datasetId);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+        customUserDetailsService.invalidateCache();
+    }
+
+    // Helper method to delete a dataset and its grants. Its files (every key
+    // under its prefix) are added to the job before the dataset is removed,
+    // so they are never lost.
+    private void deleteDataset(String jobId, String datasetId) {
+        Dataset dataset = mongoTemplateAnalysisDB.findOne(byId(datasetId), Dataset.class);
+        if (dataset != null) {
+            List<String> keys = filesService.listKeys(datasetId);
+            mongoTemplateUserDB.updateFirst(byId(jobId), heartbeat()
+                    .pushAll("pending_files", keys.toArray()), DeletionJob.class);
+            mongoTemplateAnalysisDB.remove(dataset);
+        }
+        mongoTemplateUserDB.remove(new Query(Criteria.where("dataset_id").is(datasetId)), 
+                DatasetInfo.class);
+        mongoTemplateUserDB.updateMulti(new Query(Criteria.where("granted_datasets").is(datasetId)),
+                new Update().pull("granted_datasets", datasetId), Account.class);
+        grantIndex.revokeDataset(datasetId);
+        mongoTemplateUserDB.updateFirst(byId(jobId), heartbeat()
+                .pull("pending_datasets", datasetId)
+                .inc("datasets_deleted", 1), DeletionJob.class);
+        logger.info("Deletion job " + jobId + " deleted dataset " + datasetId);
+    }
+
+    // Helper method to delete the account of a job, if not deleted yet
+    private void deleteAccount(String accountId) {
+        mongoTemplateUserDB.remove(byId(accountId), Account.class);
+        customUserDetailsService.invalidateCache();
+    }
+
+    // Helper method to remove what references a deleted account from the datasets
+    private void clearAccount(String accountId, boolean cascade) {
+        if (!cascade) {
+            // Datasets are kept as other users can access them, without creator.
+            datasetService.clearCreator(accountId);
+        }
+        mongoTemplateAnalysisDB.updateMulti(new Query(Criteria.where("grantedAccounts").is(accountId)),
+                new Update().pull("grantedAccounts", accountId)
+                .set("last_modified", new DateTime()), Dataset.class);
+        mongoTemplateUserDB.remove(new Query(Criteria.where("account_id").is(accountId)), 
+                DatasetInfo.class);
+        grantIndex.revokeAccount(accountId);
+    }
+
+    // Helper method to delete the pending files of a job in parallel batches
+    private void deleteFiles(final String jobId) {
+        List<String> keys = load(jobId).getPending_files();
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+        final List<String> unique = new ArrayList<>(new HashSet<>(keys));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < unique.size(); from += BATCH_SIZE) {
+            final List<String> batch = unique.subList(from, Math.min(from + BATCH_SIZE, unique.size()));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    List<String> deleted = new ArrayList<>(batch.size());
+                    for (FileDeleteResult result : filesService.deleteKeys(batch)) {
+                        if (result.isDeleted()) {
+                            deleted.add(result.getKey());
+                        }
+                    }
+                    mongoTemplateUserDB.updateFirst(byId(jobId), heartbeat()
+                            .pullAll("pending_files", deleted.toArray())
+                            .inc("files_deleted", deleted.size()), DeletionJob.class);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    // Helper method to end an attempt: the job is done, retried later or failed
+    private void finish(String jobId, String error) {
+        DeletionJob job = load(jobId);
+        List<String> files = job.getPending_files() == null 
+                ? Collections.<String>emptyList() : job.getPending_files();
+        List<String> datasets = job.getPending_datasets() == null 
+                ? Collections.<String>emptyList() : job.getPending_datasets();
+        final Date now = new Date();
+        Update update = new Update().set("last_modified", now);
+        if (error == null && files.isEmpty() && datasets.isEmpty()) {
+            update.set("status", DeletionJob.STATUS_DONE).unset("locked_until").unset("error");
+            logger.info("Deletion job " + jobId + " done: " + job.getDatasets_deleted() 
+                    + " datasets and " + job.getFiles_deleted() + " files deleted");
+        } else {
+            if (error == null) {
+                error = files.size() + " files could not be deleted";
+            }
+            update.set("error", error);
+            if (job.getAttempts() >= maxAttempts) {
+                update.set("status", DeletionJob.STATUS_FAILED).unset("locked_until")
+                        .set("failed_files", files);
+                logger.error("Deletion job " + jobId + " failed after " + job.getAttempts() 
+                        + " attempts: " + error);
+            } else {
+                // Retried with a growing delay.
+                update.set("status", DeletionJob.STATUS_PENDING).set("locked_until",
+                        new Date(now.getTime() + job.getAttempts() * pollSeconds * 1000));
+                logger.info("Deletion job " + jobId + " will be retried: " + error);
+            }
+        }
+        mongoTemplateUserDB.updateFirst(byId(jobId), update, DeletionJob.class);
+    }
+
+    // Helper method to run tasks on the batch pool and wait for all of them
+    private void invokeAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : batches.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause().toString(), e.getCause());
+        }
+    }
+
+    // Helper method to extend the lock of a job while it makes progress
+    private Update heartbeat() {
+        final long now = System.currentTimeMillis();
+        return new Update()
+                .set("locked_until", new Date(now + LOCK_MILLIS))
+                .set("last_modified", new Date(now));
+    }
+
+    // Helper method to read the current state of a job
+    private DeletionJob load(String jobId) {
+        return mongoTemplateUserDB.findOne(byId(jobId), DeletionJob.class);
+    }
+
+    // Helper method to select a document by ID
+    private static Query byId(String id) {
+        return new Query(Criteria.where("id").is(id));
+    }
+
+    // Helper method to create named daemon threads
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+}
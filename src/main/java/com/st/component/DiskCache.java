@@ -0,0 +1,305 @@
+package com.st.component;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import com.st.model.CacheStatistics;
+
+/**
+ * Size-bounded, least-recently-used cache of files on the local disk.
+ * Entries are keyed by a storage key (e.g. bucket/key on S3) and are only
+ * valid for the ETag they were stored with, so callers can revalidate them
+ * cheaply against the origin. The cache directory is wiped at startup.
+ *
+ * Entries are filled while the object is streamed from the origin to a
+ * client, and only one fill of a key runs at a time.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class DiskCache {
+
+    private static final Logger logger = Logger.getLogger(DiskCache.class);
+
+    /**
+     * A cached file.
+     */
+    public static class Entry {
+
+        public final File file;
+        public final String etag;
+        public final long size;
+
+        Entry(File file, String etag, long size) {
+            this.file = file;
+            this.etag = etag;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A file being filled with an object streamed from the origin. Write
+     * failures are recorded rather than thrown, so that the copy to the
+     * client is not broken by the cache. It must be committed or aborted.
+     */
+    public class Fill extends OutputStream {
+
+        private final String key;
+        private final String etag;
+        private final File file;
+        private final OutputStream out;
+        private long size = 0;
+        private boolean failed = false;
+        private boolean ended = false;
+
+        Fill(String key, String etag, File file) throws IOException {
+            this.key = key;
+            this.etag = etag;
+            this.file = file;
+            this.out = new FileOutputStream(file);
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (failed || ended) {
+                return;
+            }
+            try {
+                out.write(b, off, len);
+                size += len;
+            } catch (IOException e) {
+                logger.warn("Failed to write " + key + " to the disk cache", e);
+                failed = true;
+            }
+        }
+
+        /**
+         * Stores the file written under its key, unless a write failed.
+         * @return the new entry, or null if the file was dropped.
+         */
+        public Entry commit() {
+            if (!end() || failed) {
+                return null;
+            }
+            return insert(key, new Entry(file, etag, size));
+        }
+
+        /**
+         * Drops the file written, e.g. when the object was not read to its end.
+         */
+        public void abort() {
+            if (end()) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+
+        // Helper method to close the file and end the fill of the key, returns
+        // false if it had already ended
+        private boolean end() {
+            if (ended) {
+                return false;
+            }
+            ended = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warn("Failed to write " + key + " to the disk cache", e);
+                failed = true;
+            }
+            synchronized (DiskCache.this) {
+                filling.remove(key);
+            }
+            if (failed) {
+                FileUtils.deleteQuietly(file);
+            }
+            return true;
+        }
+    }
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private long usedBytes = 0;
+
+    // Access ordered, eldest entry is the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    // Keys being filled.
+    private final Set<String> filling = new HashSet<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param directory the directory where cached files are kept.
+     * @param maxBytes the size budget of the cache. 0 disables the cache.
+     * @throws IOException if the directory cannot be created.
+     */
+    public DiskCache(String directory, long maxBytes) throws IOException {
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+        if (isEnabled()) {
+            FileUtils.forceMkdir(this.directory);
+            FileUtils.cleanDirectory(this.directory);
+            logger.info("Disk cache in " + directory + " with a budget of " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * Returns true if the cache has a size budget.
+     * @return true if enabled.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns true if an object of the given size fits in the cache.
+     * @param size the size in bytes.
+     * @return true if it can be cached.
+     */
+    public boolean accepts(long size) {
+        return isEnabled() && size <= maxBytes;
+    }
+
+    /**
+     * Returns the cached file for a key if it is still valid for an ETag.
+     * Stale entries are dropped.
+     * @param key the key.
+     * @param etag the current ETag of the object at the origin.
+     * @return the entry or null on a miss.
+     */
+    public Entry get(String key, String etag) {
+        Entry stale;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.etag.equals(etag) && entry.file.exists()) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            misses.incrementAndGet();
+            stale = entry == null ? null : remove(key);
+        }
+        if (stale != null) {
+            FileUtils.deleteQuietly(stale.file);
+        }
+        return null;
+    }
+
+    /**
+     * Starts filling the entry of a key, unless the object does not fit in
+     * the cache or the key is already being filled.
+     * @param key the key.
+     * @param etag the ETag of the object at the origin.
+     * @param size the size of the object in bytes.
+     * @return the fill, or null if the object is not to be cached now.
+     */
+    public Fill fill(String key, String etag, long size) {
+        if (!accepts(size)) {
+            return null;
+        }
+        synchronized (this) {
+            if (!filling.add(key)) {
+                return null;
+            }
+        }
+        try {
+            return new Fill(key, etag, File.createTempFile("cache", ".tmp", directory));
+        } catch (IOException e) {
+            logger.warn("Failed to create a file in the disk cache for " + key, e);
+            synchronized (this) {
+                filling.remove(key);
+            }
+            return null;
+        }
+    }
+
+    // Helper method to store a filled entry, evicting least recently used
+    // entries until the cache fits in its budget
+    private Entry insert(String key, Entry entry) {
+        List<Entry> dropped = new ArrayList<>();
+        synchronized (this) {
+            Entry replaced = remove(key);
+            if (replaced != null) {
+                dropped.add(replaced);
+            }
+            entries.put(key, entry);
+            usedBytes += entry.size;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getValue() == entry) {
+                    continue;
+                }
+                it.remove();
+                usedBytes -= eldest.getValue().size;
+                evictions.incrementAndGet();
+                dropped.add(eldest.getValue());
+            }
+        }
+        // Open channels keep serving evicted files until they are closed.
+        for (Entry e : dropped) {
+            FileUtils.deleteQuietly(e.file);
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the entry of a key, e.g. when the object is updated or deleted.
+     * @param key the key.
+     */
+    public void invalidate(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = remove(key);
+        }
+        if (entry != null) {
+            FileUtils.deleteQuietly(entry.file);
+        }
+    }
+
+    // Helper method to remove an entry, caller must hold the lock.
+    private Entry remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            usedBytes -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a snapshot of the usage counters of the cache.
+     * @return the statistics.
+     */
+    public CacheStatistics getStatistics() {
+        CacheStatistics stats = new CacheStatistics();
+        stats.setHits(hits.get());
+        stats.setMisses(misses.get());
+        stats.setEvictions(evictions.get());
+        stats.setMaxBytes(maxBytes);
+        synchronized (this) {
+            stats.setEntries(entries.size());
+            stats.setUsedBytes(usedBytes);
+        }
+        return stats;
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.st.component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.st.model.CacheStatistics;
+
+/**
+ * In-memory cache whose entries expire a fixed time after they were stored.
+ * Used to avoid repeated round trips for metadata that rarely changes. Entries
+ * changed on this node should be invalidated explicitly; the time to live
+ * bounds how stale entries changed by other nodes can be.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ *
+ * @param <V> the type of the cached values.
+ */
+public class ExpiringCache<V> {
+
+    private static class Entry<V> {
+
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private final long ttlMillis;
+
+    private final int maxEntries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param ttlSeconds the time to live of the entries. 0 disables the cache.
+     * @param maxEntries the max. no. of entries kept.
+     */
+    public ExpiringCache(long ttlSeconds, int maxEntries) {
+        this.ttlMillis = ttlSeconds * 1000;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the value of a key if it has not expired.
+     * @param key the key.
+     * @return the value or null on a miss.
+     */
+    public V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        if (entry != null) {
+            entries.remove(key, entry);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the value of a key.
+     * @param key the key.
+     * @param value the value, not null.
+     */
+    public void put(String key, V value) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        if (entries.size() >= maxEntries) {
+            purge();
+        }
+        entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Drops the value of a key, e.g. when it is updated or deleted.
+     * @param key the key.
+     */
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Drops all the values.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    // Helper method to make room: drops expired entries first and, if the
+    // cache is still full, every entry.
+    private void purge() {
+        final long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expires <= now) {
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        if (entries.size() >= maxEntries) {
+            evictions.addAndGet(entries.size());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the usage counters of the cache.
+     * @return the statistics.
+     */
+    public CacheStatistics getStatistics() {
+        CacheStatistics stats = new CacheStatistics();
+        stats.setHits(hits.get());
+        stats.setMisses(misses.get());
+        stats.setEvictions(evictions.get());
+        stats.setEntries(entries.size());
+        return stats;
+    }
+
+}
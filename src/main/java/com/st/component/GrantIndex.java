@@ -0,0 +1,597 @@
+package com.st.component;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.st.model.DatasetInfo;
+import com.st.model.IndexStatistics;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.PostConstruct;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * In-memory index of the dataset grants (the DatasetInfo join entities), so
+ * that permission checks do not need a round trip to MongoDB. Dataset IDs are
+ * mapped to small ints and the datasets granted to each account are kept in a
+ * bitmap.
+ *
+ * The index is loaded at startup and kept up to date by DatasetInfoServiceImpl
+ * and the deletion jobs. Every change is also published to a capped
+ * collection, which all the nodes poll: the grants named by the changes of
+ * other nodes are then read again from the datasetinfo collection. The index
+ * answers checks (including denials) only while its last poll is recent;
+ * otherwise grants are checked in MongoDB. The periodic rebuild is a safety
+ * net for changes that were not published.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class GrantIndex {
+
+    private static final Logger logger = Logger.getLogger(GrantIndex.class);
+
+    /** Collection of the published changes. */
+    public static final String CHANGES_COLLECTION = "grantchanges";
+
+    /** Size of the capped collection of the changes in bytes. */
+    private static final int CHANGES_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Changes are read again from this long before the last poll, as the
+     * IDs of changes made on other nodes only roughly follow their clocks.
+     */
+    private static final long OVERLAP_MILLIS = 30000;
+
+    /** Polls missed before the index is no longer trusted. */
+    private static final int MAX_MISSED_POLLS = 10;
+
+    /**
+     * The indexed grants.
+     */
+    private static class Grants {
+
+        final Map<String, Integer> datasetNumbers = new HashMap<>();
+        final List<String> datasetIds = new ArrayList<>();
+        final Map<String, BitSet> accounts = new HashMap<>();
+        int grantCount = 0;
+
+        int number(String datasetId) {
+            Integer n = datasetNumbers.get(datasetId);
+            if (n == null) {
+                n = datasetIds.size();
+                datasetIds.add(datasetId);
+                datasetNumbers.put(datasetId, n);
+            }
+            return n;
+        }
+
+        boolean isGranted(String accountId, String datasetId) {
+            BitSet granted = accounts.get(accountId);
+            Integer n = datasetNumbers.get(datasetId);
+            return granted != null && n != null && granted.get(n);
+        }
+
+        void grant(String accountId, String datasetId) {
+            BitSet granted = accounts.get(accountId);
+            if (granted == null) {
+                granted = new BitSet();
+                accounts.put(accountId, granted);
+            }
+            final int n = number(datasetId);
+            if (!granted.get(n)) {
+                granted.set(n);
+                grantCount++;
+            }
+        }
+
+        void revoke(String accountId, String datasetId) {
+            BitSet granted = accounts.get(accountId);
+            Integer n = datasetNumbers.get(datasetId);
+            if (granted != null && n != null && granted.get(n)) {
+                granted.clear(n);
+                grantCount--;
+            }
+        }
+
+        void revokeAccount(String accountId) {
+            BitSet granted = accounts.remove(accountId);
+            if (granted != null) {
+                grantCount -= granted.cardinality();
+            }
+        }
+
+        void revokeDataset(String datasetId) {
+            Integer n = datasetNumbers.get(datasetId);
+            if (n == null) {
+                return;
+            }
+            for (BitSet granted : accounts.values()) {
+                if (granted.get(n)) {
+                    granted.clear(n);
+                    grantCount--;
+                }
+            }
+        }
+    }
+
+    /**
+     * A change of the grants: of an account to a dataset, or the revocation
+     * of all the grants of an account (null dataset) or of a dataset (null
+     * account).
+     */
+    private static class Change {
+
+        final String accountId;
+        final String datasetId;
+        final boolean granted;
+
+        Change(String accountId, String datasetId, boolean granted) {
+            this.accountId = accountId;
+            this.datasetId = datasetId;
+            this.granted = granted;
+        }
+
+        void applyTo(Grants grants) {
+            if (granted) {
+                grants.grant(accountId, datasetId);
+            } else if (accountId == null) {
+                grants.revokeDataset(datasetId);
+            } else if (datasetId == null) {
+                grants.revokeAccount(accountId);
+            } else {
+                grants.revoke(accountId, datasetId);
+            }
+        }
+    }
+
+    @Autowired
+    MongoOperations mongoTemplateUserDB;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private Grants grants = new Grants();
+
+    private boolean loaded = false;
+
+    // Changes made during a rebuild, null if no rebuild is running.
+    private List<Change> pending = null;
+
+    // Incremented by every local change, so that changes read from MongoDB
+    // are not applied over newer local ones.
+    private long generation = 0;
+
+    // Start of the last successful poll of the changes of other nodes.
+    private volatile long lastPoll = 0;
+
+    // IDs of the changes of other nodes already applied, and their times.
+    private final Map<ObjectId, Long> polled = new HashMap<>();
+
+    private final String node = UUID.randomUUID().toString();
+
+    private long rebuildMillis = 0;
+
+    private DateTime lastRebuild = null;
+
+    private final long refreshSeconds;
+
+    private final long pollMillis;
+
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * Constructor.
+     * @param refreshSeconds interval between rebuilds from MongoDB. 0 disables them.
+     * @param pollMillis interval between polls of the changes made on other
+     * nodes. 0 disables the index: grants are then checked in MongoDB.
+     */
+    public GrantIndex(long refreshSeconds, long pollMillis) {
+        this.refreshSeconds = refreshSeconds;
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Loads the index and schedules the polls and the periodic rebuilds.
+     */
+    @PostConstruct
+    public void start() {
+        if (pollMillis <= 0) {
+            logger.info("The grant index is disabled");
+            return;
+        }
+        if (!mongoTemplateUserDB.collectionExists(CHANGES_COLLECTION)) {
+            try {
+                mongoTemplateUserDB.createCollection(CHANGES_COLLECTION,
+                        new CollectionOptions(CHANGES_BYTES, null, true));
+            } catch (RuntimeException e) {
+                // Created by another node in the meantime.
+                logger.info("Could not create " + CHANGES_COLLECTION + ": " + e.getMessage());
+            }
+        }
+        // Changes published while loading are applied by the first poll.
+        lastPoll = System.currentTimeMillis();
+        rebuild();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "grant-index");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        if (refreshSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    rebuild();
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the polls and the periodic rebuilds (bean destroy method).
+     */
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the datasetinfo collection.
+     */
+    public void rebuild() {
+        final long started = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            pending = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Grants rebuilt = new Grants();
+        boolean completed = false;
+        try {
+            Query query = new Query();
+            query.fields().include("account_id").include("dataset_id");
+            for (DatasetInfo dsi : mongoTemplateUserDB.find(query, DatasetInfo.class)) {
+                if (dsi.getAccount_id() != null && dsi.getDataset_id() != null) {
+                    rebuilt.grant(dsi.getAccount_id(), dsi.getDataset_id());
+                }
+            }
+            completed = true;
+        } catch (RuntimeException e) {
+            logger.error("Failed to rebuild the grant index", e);
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (completed) {
+                    for (Change change : pending) {
+                        change.applyTo(rebuilt);
+                    }
+                    grants = rebuilt;
+                    loaded = true;
+                    rebuildMillis = System.currentTimeMillis() - started;
+                    lastRebuild = new DateTime();
+                }
+                pending = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (completed) {
+            logger.info("Rebuilt the grant index: " + rebuilt.grantCount + " grants of "
+                    + rebuilt.accounts.size() + " accounts in " + rebuildMillis + " ms");
+        }
+    }
+
+    /**
+     * Returns true if a dataset is granted to an account. The index answers
+     * while it is in sync with the other nodes, MongoDB otherwise.
+     * @param accountId the account ID.
+     * @param datasetId the dataset ID.
+     * @return true if granted.
+     */
+    public boolean isGranted(String accountId, String datasetId) {
+        if (isSynced()) {
+            lock.readLock().lock();
+            try {
+                if (loaded) {
+                    return grants.isGranted(accountId, datasetId);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return mongoTemplateUserDB.exists(new Query(Criteria.where("dataset_id")
+                .is(datasetId).and("account_id").is(accountId)), DatasetInfo.class);
+    }
+
+    // Helper method to check that the changes of other nodes were polled recently
+    private boolean isSynced() {
+        return pollMillis > 0
+                && System.currentTimeMillis() - lastPoll <= MAX_MISSED_POLLS * pollMillis;
+    }
+
+    /**
+     * Indexes and publishes a grant, once it is stored.
+     * @param accountId the account ID.
+     * @param datasetId the dataset ID.
+     */
+    public void grant(String accountId, String datasetId) {
+        apply(Collections.singletonList(new Change(accountId, datasetId, true)));
+    }
+
+    /**
+     * Indexes and publishes the grants of an account to several datasets.
+     * @param accountId the account ID.
+     * @param datasetIds the dataset IDs.
+     */
+    public void grantDatasets(String accountId, Collection<String> datasetIds) {
+        List<Change> changes = new ArrayList<>(datasetIds.size());
+        for (String datasetId : datasetIds) {
+            changes.add(new Change(accountId, datasetId, true));
+        }
+        apply(changes);
+    }
+
+    /**
+     * Indexes and publishes the grants of a dataset to several accounts.
+     * @param datasetId the dataset ID.
+     * @param accountIds the account IDs.
+     */
+    public void grantAccounts(String datasetId, Collection<String> accountIds) {
+        List<Change> changes = new ArrayList<>(accountIds.size());
+        for (String accountId : accountIds) {
+            changes.add(new Change(accountId, datasetId, true));
+        }
+        apply(changes);
+    }
+
+    /**
+     * Removes and publishes the revocation of a grant, once it is stored.
+     * @param accountId the account ID.
+     * @param datasetId the dataset ID.
+     */
+    public void revoke(String accountId, String datasetId) {
+        apply(Collections.singletonList(new Change(accountId, datasetId, false)));
+    }
+
+    /**
+     * Removes and publishes the revocation of the grants of an account to
+     * several datasets.
+     * @param accountId the account ID.
+     * @param datasetIds the dataset IDs.
+     */
+    public void revokeDatasets(String accountId, Collection<String> datasetIds) {
+        List<Change> changes = new ArrayList<>(datasetIds.size());
+        for (String datasetId : datasetIds) {
+            changes.add(new Change(accountId, datasetId, false));
+        }
+        apply(changes);
+    }
+
+    /**
+     * Removes and publishes the revocation of the grants of a dataset to
+     * several accounts.
+     * @param datasetId the dataset ID.
+     * @param accountIds the account IDs.
+     */
+    public void revokeAccounts(String datasetId, Collection<String> accountIds) {
+        List<Change> changes = new ArrayList<>(accountIds.size());
+        for (String accountId : accountIds) {
+            changes.add(new Change(accountId, datasetId, false));
+        }
+        apply(changes);
+    }
+
+    /**
+     * Removes all the grants of an account.
+     * @param accountId the account ID.
+     */
+    public void revokeAccount(String accountId) {
+        apply(Collections.singletonList(new Change(accountId, null, false)));
+    }
+
+    /**
+     * Removes all the grants of a dataset.
+     * @param datasetId the dataset ID.
+     */
+    public void revokeDataset(String datasetId) {
+        apply(Collections.singletonList(new Change(null, datasetId, false)));
+    }
+
+    // Helper method to apply local changes to the index (and to the rebuild
+    // in progress) and to publish them to the other nodes
+    private void apply(List<Change> changes) {
+        if (changes.isEmpty() || pollMillis <= 0) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (Change change : changes) {
+                change.applyTo(grants);
+            }
+            if (pending != null) {
+                pending.addAll(changes);
+            }
+            generation++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        List<DBObject> published = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            published.add(new BasicDBObject("node", node)
+                    .append("account_id", change.accountId)
+                    .append("dataset_id", change.datasetId));
+        }
+        try {
+            changes().insert(published);
+        } catch (RuntimeException e) {
+            // Other nodes pick the changes up with their next rebuild.
+            logger.error("Failed to publish " + changes.size() + " grant changes", e);
+        }
+    }
+
+    // Helper method to poll the changes published by other nodes since the
+    // last poll, and to read the grants they name again from MongoDB
+    private void poll() {
+        final long started = System.currentTimeMillis();
+        final long from = lastPoll - OVERLAP_MILLIS;
+        try {
+            Map<ObjectId, Change> unseen = new HashMap<>();
+            DBCursor cursor = changes().find(new BasicDBObject("_id",
+                    new BasicDBObject("$gte", new ObjectId(new Date(from)))));
+            try {
+                while (cursor.hasNext()) {
+                    DBObject doc = cursor.next();
+                    final ObjectId id = (ObjectId) doc.get("_id");
+                    if (!node.equals(doc.get("node")) && !polled.containsKey(id)) {
+                        unseen.put(id, new Change((String) doc.get("account_id"),
+                                (String) doc.get("dataset_id"), false));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (!applyCurrent(unseen.values())) {
+                logger.info("Grant changes of other nodes deferred to the next poll");
+                return;
+            }
+            for (ObjectId id : unseen.keySet()) {
+                polled.put(id, id.getTime());
+            }
+            Iterator<Long> it = polled.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() < from) {
+                    it.remove();
+                }
+            }
+            lastPoll = started;
+            if (!unseen.isEmpty()) {
+                logger.debug("Applied " + unseen.size() + " grant changes of other nodes");
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to poll the grant changes", e);
+        }
+    }
+
+    // Helper method to read again the grants named by changes of other nodes
+    // and to apply them. They are not applied over local changes made while
+    // they were read, which may be newer: it is then retried, and false is
+    // returned if it never succeeds.
+    private boolean applyCurrent(Collection<Change> named) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            final long generationBefore;
+            lock.readLock().lock();
+            try {
+                generationBefore = generation;
+            } finally {
+                lock.readLock().unlock();
+            }
+            List<Change> changes = new ArrayList<>();
+            for (Change change : named) {
+                changes.addAll(reread(change));
+            }
+            lock.writeLock().lock();
+            try {
+                if (generation == generationBefore) {
+                    for (Change change : changes) {
+                        change.applyTo(grants);
+                    }
+                    if (pending != null) {
+                        pending.addAll(changes);
+                    }
+                    return true;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return false;
+    }
+
+    // Helper method to read the current grants named by a change, returns the
+    // changes that make the index match them
+    private List<Change> reread(Change change) {
+        List<Change> changes = new ArrayList<>();
+        if (change.accountId != null && change.datasetId != null) {
+            changes.add(new Change(change.accountId, change.datasetId,
+                    mongoTemplateUserDB.exists(new Query(Criteria.where("dataset_id")
+                    .is(change.datasetId).and("account_id").is(change.accountId)),
+                    DatasetInfo.class)));
+            return changes;
+        }
+        // All the grants of an account or of a dataset.
+        changes.add(change);
+        Query query = new Query(change.accountId != null
+                ? Criteria.where("account_id").is(change.accountId)
+                : Criteria.where("dataset_id").is(change.datasetId));
+        query.fields().include("account_id").include("dataset_id");
+        for (DatasetInfo dsi : mongoTemplateUserDB.find(query, DatasetInfo.class)) {
+            changes.add(new Change(dsi.getAccount_id(), dsi.getDataset_id(), true));
+        }
+        return changes;
+    }
+
+    // Helper method to return the collection of the published changes
+    private DBCollection changes() {
+        return mongoTemplateUserDB.getCollection(CHANGES_COLLECTION);
+    }
+
+    /**
+     * Returns the size, approximate memory use and rebuild time of the index.
+     * @return the statistics.
+     */
+    public IndexStatistics getStatistics() {
+        lock.readLock().lock();
+        try {
+            IndexStatistics stats = new IndexStatistics();
+            stats.setAccounts(grants.accounts.size());
+            stats.setDatasets(grants.datasetIds.size());
+            stats.setEntries(grants.grantCount);
+            // Rough estimate: bitmap words plus map entries, keys and strings.
+            long bytes = 0;
+            for (Map.Entry<String, BitSet> account : grants.accounts.entrySet()) {
+                bytes += account.getValue().size() / 8 + 48 + 40 + 2 * account.getKey().length();
+            }
+            for (String datasetId : grants.datasetIds) {
+                bytes += 48 + 16 + 40 + 2 * datasetId.length() + 8;
+            }
+            stats.setMemoryBytes(bytes);
+            stats.setRebuildMillis(rebuildMillis);
+            stats.setLastRebuild(lastRebuild);
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.st.component;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.st.model.Dataset;
+import com.st.model.DatasetInfo;
+import com.st.util.CursorOperations;
+import com.st.util.CursorOperations.CursorIterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.PostConstruct;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+/**
+ * One-time migration that rebuilds Dataset.grantedAccounts from the
+ * datasetinfo collection, which is the source of truth of the grants.
+ * Earlier versions did not remove revoked accounts from grantedAccounts, so
+ * the listings can only query it once the migration has completed.
+ *
+ * The migration runs in the background at startup, unless it is recorded as
+ * completed in the migrations collection. It can run on several nodes at the
+ * same time: only the differences with datasetinfo are written.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class GrantedAccountsMigration {
+
+    private static final Logger logger = Logger.getLogger(GrantedAccountsMigration.class);
+
+    /** Collection of the completed migrations. */
+    public static final String MIGRATIONS_COLLECTION = "migrations";
+
+    /** ID of this migration in the migrations collection. */
+    private static final String MIGRATION_ID = "dataset_granted_accounts";
+
+    @Autowired
+    MongoOperations mongoTemplateUserDB;
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    private volatile boolean completed = false;
+
+    private ExecutorService executor = null;
+
+    /**
+     * Starts the migration, unless it has already completed.
+     */
+    @PostConstruct
+    public void start() {
+        if (migrations().findOne(new BasicDBObject("_id", MIGRATION_ID)) != null) {
+            completed = true;
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "granted-accounts-migration");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                migrate();
+            }
+        });
+    }
+
+    /**
+     * Stops a running migration (bean destroy method).
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns true once grantedAccounts matches the datasetinfo collection.
+     * @return true if the migration has completed.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Rebuilds grantedAccounts of the datasets that differ from the
+     * datasetinfo collection, and records the migration as completed.
+     */
+    public void migrate() {
+        final long started = System.currentTimeMillis();
+        logger.info("Migrating the granted accounts of the datasets");
+        try {
+            Map<String, Set<String>> granted = new HashMap<>();
+            Query grants = new Query();
+            grants.fields().include("account_id").include("dataset_id");
+            for (DatasetInfo dsi : mongoTemplateUserDB.find(grants, DatasetInfo.class)) {
+                Set<String> accounts = granted.get(dsi.getDataset_id());
+                if (accounts == null) {
+                    accounts = new HashSet<>();
+                    granted.put(dsi.getDataset_id(), accounts);
+                }
+                accounts.add(dsi.getAccount_id());
+            }
+            Query datasets = new Query();
+            datasets.fields().include("id").include("grantedAccounts");
+            List<String> differing = new ArrayList<>();
+            try (CursorIterator<Dataset> it = CursorOperations.find(
+                    mongoTemplateAnalysisDB, datasets, Dataset.class)) {
+                while (it.hasNext()) {
+                    Dataset dataset = it.next();
+                    Set<String> accounts = granted.get(dataset.getId());
+                    if (!asSet(dataset.getGrantedAccounts()).equals(
+                            accounts == null ? Collections.<String>emptySet() : accounts)) {
+                        differing.add(dataset.getId());
+                    }
+                }
+            }
+            for (String datasetId : differing) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                fix(datasetId);
+            }
+            migrations().save(new BasicDBObject("_id", MIGRATION_ID).append("completed", new Date()));
+            completed = true;
+            logger.info("Migrated the granted accounts of " + differing.size() + " datasets in "
+                    + (System.currentTimeMillis() - started) + " ms");
+        } catch (RuntimeException e) {
+            logger.error("Failed to migrate the granted accounts of the datasets", e);
+        }
+    }
+
+    // Helper method to update grantedAccounts of a dataset with its grants,
+    // read again just before, so that grants changed during the migration
+    // are not overwritten.
+    private void fix(String datasetId) {
+        Query grants = new Query(Criteria.where("dataset_id").is(datasetId));
+        grants.fields().include("account_id");
+        Set<String> accounts = new HashSet<>();
+        for (DatasetInfo dsi : mongoTemplateUserDB.find(grants, DatasetInfo.class)) {
+            accounts.add(dsi.getAccount_id());
+        }
+        Query byId = new Query(Criteria.where("id").is(datasetId));
+        byId.fields().include("grantedAccounts");
+        Dataset dataset = mongoTemplateAnalysisDB.findOne(byId, Dataset.class);
+        if (dataset == null) {
+            return;
+        }
+        Set<String> stale = asSet(dataset.getGrantedAccounts());
+        stale.removeAll(accounts);
+        Set<String> missing = new HashSet<>(accounts);
+        missing.removeAll(asSet(dataset.getGrantedAccounts()));
+        // $pullAll and $addToSet of the same field need separate updates.
+        if (!stale.isEmpty()) {
+            mongoTemplateAnalysisDB.updateFirst(new Query(Criteria.where("id").is(datasetId)),
+                    new Update().pullAll("grantedAccounts", stale.toArray())
+                    .set("last_modified", new DateTime()), Dataset.class);
+        }
+        if (!missing.isEmpty()) {
+            mongoTemplateAnalysisDB.updateFirst(new Query(Criteria.where("id").is(datasetId)),
+                    new Update().addToSet("grantedAccounts",
+                            new BasicDBObject("$each", new ArrayList<>(missing)))
+                    .set("last_modified", new DateTime()), Dataset.class);
+        }
+        logger.info("Dataset " + datasetId + ": removed granted accounts " + stale
+                + ", added " + missing);
+    }
+
+    // Helper method to copy a possibly null list
+    private static Set<String> asSet(List<String> list) {
+        return list == null ? new HashSet<String>() : new HashSet<>(list);
+    }
+
+    // Helper method to access the migrations collection
+    private DBCollection migrations() {
+        return mongoTemplateUserDB.getCollection(MIGRATIONS_COLLECTION);
+    }
+
+}
@@ -0,0 +1,258 @@
+package com.st.component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.model.FileMetadata;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * In-memory index of the metadata of the images in the image bucket, so that
+ * looking up an image does not need a listing of the bucket. Misses are
+ * resolved with a HEAD request on the object.
+ *
+ * The index is refreshed periodically by listing the bucket in parallel: the
+ * key space is split in ranges that are listed page by page at the same time,
+ * and each range is merged into the index as soon as it is listed. Only the
+ * top-level keys are indexed, objects derived from an image are stored under
+ * its "{id}/" prefix.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class ImageMetadataIndex {
+
+    private static final Logger logger = Logger.getLogger(ImageMetadataIndex.class);
+
+    /** First keys of the listed ranges, besides the range of keys before "0". */
+    private static final String[] BOUNDARIES = {
+        "0", "5", "A", "G", "M", "S", "Y", "a", "g", "m", "s", "y"
+    };
+
+    private final ConcurrentSkipListMap<String, FileMetadata> entries =
+            new ConcurrentSkipListMap<>();
+
+    private final AmazonS3Client s3Client;
+
+    private final String bucket;
+
+    private final long refreshSeconds;
+
+    private final ExecutorService listers;
+
+    private ScheduledExecutorService scheduler = null;
+
+    private volatile long refreshMillis = 0;
+
+    /**
+     * Constructor.
+     * @param s3Client the S3 client.
+     * @param bucket the image bucket.
+     * @param refreshSeconds interval between refreshes. 0 disables them.
+     * @param parallelism the max. no. of ranges listed at the same time.
+     */
+    public ImageMetadataIndex(AmazonS3Client s3Client, String bucket, long refreshSeconds,
+            int parallelism) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.refreshSeconds = refreshSeconds;
+        this.listers = Executors.newFixedThreadPool(Math.max(parallelism, 1),
+                threadFactory("image-index-list"));
+    }
+
+    /**
+     * Loads the index and schedules the periodic refreshes.
+     */
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("image-index-refresh"));
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        });
+        if (refreshSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the refreshes (bean destroy method).
+     */
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        listers.shutdownNow();
+    }
+
+    /**
+     * Returns the metadata of an image, with a HEAD request if it is not indexed.
+     * @param key the image name.
+     * @return the metadata or null if the image does not exist.
+     */
+    public FileMetadata get(String key) {
+        FileMetadata meta = entries.get(key);
+        if (meta != null) {
+            return meta;
+        }
+        try {
+            meta = toMetadata(key, s3Client.getObjectMetadata(bucket, key));
+            entries.put(key, meta);
+            return meta;
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                logger.error("Error getting metadata of image " + key + " from Amazon S3.", e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Drops the metadata of an image, e.g. when it is added or deleted.
+     * The next lookup fetches it again.
+     * @param key the image name.
+     */
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Returns the no. of indexed images.
+     * @return the size.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Lists the bucket in parallel ranges and merges each range into the index.
+     */
+    public void refresh() {
+        final long started = System.currentTimeMillis();
+        List<Future<Integer>> ranges = new ArrayList<>(BOUNDARIES.length + 1);
+        for (int i = 0; i <= BOUNDARIES.length; i++) {
+            final String from = i == 0 ? null : BOUNDARIES[i - 1];
+            final String to = i == BOUNDARIES.length ? null : BOUNDARIES[i];
+            ranges.add(listers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return refreshRange(from, to, started);
+                }
+            }));
+        }
+        int count = 0;
+        try {
+            for (Future<Integer> range : ranges) {
+                count += range.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            logger.error("Failed to refresh the image metadata index", e.getCause());
+            return;
+        }
+        refreshMillis = System.currentTimeMillis() - started;
+        logger.info("Refreshed the image metadata index: " + count + " images in "
+                + refreshMillis + " ms");
+    }
+
+    // Helper method to list the keys in [from, to) and merge them into the index
+    private int refreshRange(String from, String to, long started) throws AmazonClientException {
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(bucket)
+                .withDelimiter("/");
+        if (from != null) {
+            // Every key from "from" on sorts after this marker.
+            request.setMarker((char) (from.charAt(0) - 1) + "\uffff");
+        }
+        Set<String> seen = new HashSet<>();
+        ObjectListing listing = s3Client.listObjects(request);
+        boolean done = false;
+        while (!done) {
+            for (S3ObjectSummary o : listing.getObjectSummaries()) {
+                if (to != null && o.getKey().compareTo(to) >= 0) {
+                    done = true;
+                    break;
+                }
+                FileMetadata im = new FileMetadata();
+                im.setFilename(o.getKey());
+                im.setLastModified(new DateTime(o.getLastModified()));
+                im.setCreated(new DateTime(o.getLastModified()));
+                im.setSize(o.getSize());
+                im.setEtag(o.getETag());
+                entries.put(o.getKey(), im);
+                seen.add(o.getKey());
+            }
+            if (!done && listing.isTruncated()) {
+                listing = s3Client.listNextBatchOfObjects(listing);
+            } else {
+                done = true;
+            }
+        }
+        // Images deleted since the last refresh (but not the ones added during it).
+        Map<String, FileMetadata> range = from == null
+                ? (to == null ? entries : entries.headMap(to))
+                : (to == null ? entries.tailMap(from) : entries.subMap(from, to));
+        for (Map.Entry<String, FileMetadata> entry : range.entrySet()) {
+            if (!seen.contains(entry.getKey())
+                    && entry.getValue().getLastModified().getMillis() < started) {
+                entries.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        return seen.size();
+    }
+
+    // Helper method to build the metadata of an image from a HEAD response
+    private static FileMetadata toMetadata(String key, ObjectMetadata om) {
+        FileMetadata im = new FileMetadata();
+        im.setFilename(key);
+        im.setLastModified(new DateTime(om.getLastModified()));
+        im.setCreated(new DateTime(om.getLastModified()));
+        im.setSize(om.getContentLength());
+        im.setEtag(om.getETag());
+        return im;
+    }
+
+    // Helper method to create named daemon threads
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,667 @@
+package com.st.component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * Downscaled JPEG renditions of the images (e.g. thumbnails and previews),
+ * each of a fixed max. width. Renditions are stored in the image bucket
+ * under the "{id}/renditions/" prefix of the image, and the most recently
+ * used ones are kept in memory, up to a byte budget.
+ *
+ * Renditions are generated in the background when an image is added, or on
+ * the first request if missing. All the renditions of an image are made from
+ * a single subsampled decode of the image, read in horizontal bands of about
+ * bandBytes so that the full raster is never held.
+ *
+ * Concurrent requests of a missing rendition share a single read, and a
+ * single generation. Renditions read while a regeneration of the image is
+ * queued are not kept, and only the last queued regeneration of an image
+ * stores its renditions. Renditions kept in memory are revalidated against
+ * the bucket with a conditional GET after revalidateSeconds, so that the
+ * renditions regenerated on other nodes are picked up.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class ImageRenditions {
+
+    private static final Logger logger = Logger.getLogger(ImageRenditions.class);
+
+    /**
+     * A rendition of an image: the JPEG and its validators.
+     */
+    public static class Rendition {
+
+        public final byte[] bytes;
+        public final String etag;
+        public final DateTime lastModified;
+
+        Rendition(byte[] bytes, String etag, DateTime lastModified) {
+            this.bytes = bytes;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * A rendition kept in memory, and when it was last checked against the bucket.
+     */
+    private static class Cached {
+
+        final Rendition rendition;
+        long checked;
+
+        Cached(Rendition rendition) {
+            this.rendition = rendition;
+            this.checked = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The regenerations of an image queued or running, and the ticket of the
+     * last one queued.
+     */
+    private static class Pending {
+
+        int count = 0;
+        long latest = 0;
+    }
+
+    private final AmazonS3Client s3Client;
+
+    private final S3Writer s3Writer;
+
+    private final String bucket;
+
+    private final Map<String, Integer> widths;
+
+    private final float quality;
+
+    private final long maxBytes;
+
+    private final long bandBytes;
+
+    private final long revalidateMillis;
+
+    private final ExecutorService executor;
+
+    private final DecodeScheduler decodeScheduler;
+
+    // Least recently used first. It is the lock of all the state below.
+    private final LinkedHashMap<String, Cached> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long cachedBytes = 0;
+
+    // Reads of renditions in progress by key, and generations from the
+    // bucket in progress by image.
+    private final Map<String, FutureTask<Rendition>> loads = new HashMap<>();
+
+    private final Map<String, FutureTask<Map<String, Rendition>>> generations = new HashMap<>();
+
+    private final Map<String, Pending> pending = new HashMap<>();
+
+    // Ticket of the last regeneration queued, of any image.
+    private long sequence = 0;
+
+    /**
+     * Constructor.
+     * @param s3Client the S3 client.
+     * @param s3Writer uploads the renditions.
+     * @param bucket the image bucket.
+     * @param widths the max. width in pixels of each rendition, by name.
+     * @param quality the JPEG quality of the renditions, between 0 and 1.
+     * @param maxBytes the max. size of the renditions kept in memory. 0 disables the cache.
+     * @param bandBytes approx. memory used to decode each band of the image.
+     * @param parallelism the max. no. of images whose renditions are generated at the same time.
+     * @param decodeScheduler admits the memory of each decode.
+     * @param revalidateSeconds time after which the renditions in memory are
+     * checked against the bucket. 0 checks them on every use.
+     * @param maxQueued the max. no. of images waiting for a generation thread,
+     * each holding a temporary file.
+     */
+    public ImageRenditions(AmazonS3Client s3Client, S3Writer s3Writer, String bucket,
+            Map<String, Integer> widths, float quality, long maxBytes, long bandBytes,
+            int parallelism, DecodeScheduler decodeScheduler, long revalidateSeconds,
+            int maxQueued) {
+        this.s3Client = s3Client;
+        this.s3Writer = s3Writer;
+        this.decodeScheduler = decodeScheduler;
+        this.bucket = bucket;
+        this.widths = new HashMap<>(widths);
+        this.quality = quality;
+        this.maxBytes = maxBytes;
+        this.bandBytes = bandBytes;
+        this.revalidateMillis = revalidateSeconds * 1000;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(parallelism, 1),
+                Math.max(parallelism, 1), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(maxQueued, 1)), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "image-renditions-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Stops the generation threads (bean destroy method).
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns true if a rendition name is configured.
+     * @param name the rendition name.
+     * @return true if known.
+     */
+    public boolean isRendition(String name) {
+        return widths.containsKey(name);
+    }
+
+    /**
+     * Returns the key of a rendition in the bucket.
+     * @param id the image name.
+     * @param name the rendition name.
+     * @return the key.
+     */
+    public static String renditionKey(String id, String name) {
+        return id + "/renditions/" + name + ".jpg";
+    }
+
+    /**
+     * Returns a rendition of an image: from memory, else from the bucket,
+     * else it is generated (with the other renditions of the image).
+     * @param id the image name.
+     * @param name the rendition name.
+     * @return the rendition, or null if the image does not exist.
+     * @throws IOException if the image cannot be decoded.
+     */
+    public Rendition get(final String id, final String name) throws IOException {
+        final String key = renditionKey(id, name);
+        final FutureTask<Rendition> load;
+        boolean owner = false;
+        synchronized (cache) {
+            final Cached cached = cache.get(key);
+            if (cached != null && System.currentTimeMillis() - cached.checked < revalidateMillis) {
+                return cached.rendition;
+            }
+            FutureTask<Rendition> running = loads.get(key);
+            if (running == null) {
+                final long started = sequence;
+                running = new FutureTask<>(new Callable<Rendition>() {
+                    @Override
+                    public Rendition call() throws IOException {
+                        return fetch(id, name, cached, started);
+                    }
+                });
+                loads.put(key, running);
+                owner = true;
+            }
+            load = running;
+        }
+        if (owner) {
+            try {
+                load.run();
+            } finally {
+                synchronized (cache) {
+                    loads.remove(key);
+                }
+            }
+        }
+        return join(load);
+    }
+
+    /**
+     * Drops the renditions of an image from memory, e.g. when it is deleted.
+     * @param id the image name.
+     */
+    public void invalidate(String id) {
+        synchronized (cache) {
+            for (String name : widths.keySet()) {
+                drop(renditionKey(id, name));
+            }
+        }
+    }
+
+    /**
+     * Queues the (re)generation of the renditions of an image from a local
+     * copy of it, e.g. the file of an upload, which is removed when done.
+     * @param id the image name.
+     * @param source the image file.
+     * @throws RejectedExecutionException if maxQueued images are waiting. The
+     * file is removed, and the renditions are generated on the first request.
+     */
+    public void regenerate(final String id, final File source) {
+        final long ticket = queued(id);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (ImageInputStream iis = ImageIO.createImageInputStream(source)) {
+                        generate(id, iis, null, ticket);
+                    } catch (IOException | RuntimeException e) {
+                        logger.error("Failed to generate the renditions of image " + id, e);
+                    } finally {
+                        delete(source);
+                        done(id);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            delete(source);
+            done(id);
+            throw e;
+        }
+    }
+
+    // Helper method to record a queued regeneration, returns its ticket
+    private long queued(String id) {
+        synchronized (cache) {
+            Pending regenerations = pending.get(id);
+            if (regenerations == null) {
+                regenerations = new Pending();
+                pending.put(id, regenerations);
+            }
+            regenerations.count++;
+            regenerations.latest = ++sequence;
+            invalidate(id);
+            return regenerations.latest;
+        }
+    }
+
+    // Helper method to record the end of a regeneration
+    private void done(String id) {
+        synchronized (cache) {
+            Pending regenerations = pending.get(id);
+            if (regenerations != null && --regenerations.count == 0) {
+                pending.remove(id);
+            }
+        }
+    }
+
+    // Helper method to check if renditions may be stored and kept: those of
+    // a regeneration only if it is the last one queued for the image, the
+    // others only if no regeneration is queued.
+    private boolean isCurrent(String id, long ticket) {
+        synchronized (cache) {
+            Pending regenerations = pending.get(id);
+            return ticket == 0 ? regenerations == null
+                    : regenerations != null && regenerations.latest == ticket;
+        }
+    }
+
+    // Helper method to remove a local copy of an image
+    private static void delete(File source) {
+        if (!source.delete()) {
+            logger.warn("Could not delete " + source);
+        }
+    }
+
+    // Helper method to read a rendition from the bucket, revalidating the one
+    // in memory if any, else to generate it. A rendition read is kept only if
+    // no regeneration was queued since the read started.
+    private Rendition fetch(String id, String name, Cached cached, long started)
+            throws IOException {
+        final String key = renditionKey(id, name);
+        Rendition rendition = load(key, cached == null ? null : cached.rendition);
+        if (rendition == null) {
+            if (cached != null) {
+                synchronized (cache) {
+                    drop(key);
+                }
+            }
+            Map<String, Rendition> generated = generate(id);
+            return generated == null ? null : generated.get(name);
+        }
+        synchronized (cache) {
+            if (sequence == started && !pending.containsKey(id)) {
+                if (cached != null && rendition == cached.rendition) {
+                    if (cache.get(key) == cached) {
+                        cached.checked = System.currentTimeMillis();
+                    }
+                } else {
+                    cache(key, rendition);
+                }
+            }
+        }
+        return rendition;
+    }
+
+    // Helper method to generate the renditions of an image from the bucket,
+    // once for all the requests that miss them at the same time
+    private Map<String, Rendition> generate(final String id) throws IOException {
+        final FutureTask<Map<String, Rendition>> generation;
+        boolean owner = false;
+        synchronized (cache) {
+            FutureTask<Map<String, Rendition>> running = generations.get(id);
+            if (running == null) {
+                running = new FutureTask<>(new Callable<Map<String, Rendition>>() {
+                    @Override
+                    public Map<String, Rendition> call() throws IOException {
+                        return generate(id, 0);
+                    }
+                });
+                generations.put(id, running);
+                owner = true;
+            }
+            generation = running;
+        }
+        if (owner) {
+            try {
+                generation.run();
+            } finally {
+                synchronized (cache) {
+                    generations.remove(id);
+                }
+            }
+        }
+        return join(generation);
+    }
+
+    // Helper method to generate and store all the renditions of an image,
+    // returns null if the image does not exist
+    private Map<String, Rendition> generate(String id, long ticket) throws IOException {
+        final S3Object object;
+        try {
+            object = s3Client.getObject(bucket, id);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+        final S3ObjectInputStream in = object.getObjectContent();
+        boolean completed = false;
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Map<String, Rendition> renditions = generate(id, iis,
+                    object.getObjectMetadata().getETag(), ticket);
+            completed = true;
+            return renditions;
+        } finally {
+            if (completed) {
+                in.close();
+            } else {
+                in.abort();
+            }
+        }
+    }
+
+    // Helper method to generate all the renditions of an image read from a
+    // stream, and to store and keep them unless they are outdated: if a
+    // newer regeneration of the image was queued, or if the image read from
+    // the bucket (of the given ETag) was replaced in the meantime
+    private Map<String, Rendition> generate(String id, ImageInputStream iis, String sourceEtag,
+            long ticket) throws IOException {
+        final long started = System.currentTimeMillis();
+        List<Map.Entry<String, Integer>> sizes = new ArrayList<>(widths.entrySet());
+        // Largest first, each smaller one is scaled from the previous one.
+        Collections.sort(sizes, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        BufferedImage img = decode(id, iis, sizes.get(0).getValue());
+        Map<String, byte[]> encoded = new HashMap<>();
+        for (Map.Entry<String, Integer> size : sizes) {
+            img = scale(img, size.getValue());
+            encoded.put(size.getKey(), encode(img));
+        }
+        Map<String, Rendition> renditions = new HashMap<>();
+        final String currentEtag = sourceEtag == null ? null : sourceEtag(id);
+        if (sourceEtag != null && currentEtag == null) {
+            // Deleted in the meantime.
+            return null;
+        }
+        if (!isCurrent(id, ticket) || (sourceEtag != null && !sourceEtag.equals(currentEtag))) {
+            logger.info("Discarded the outdated renditions of image " + id);
+            for (Map.Entry<String, byte[]> rendition : encoded.entrySet()) {
+                renditions.put(rendition.getKey(),
+                        new Rendition(rendition.getValue(), null, new DateTime()));
+            }
+            return renditions;
+        }
+        Map<String, Future<PutObjectResult>> uploads = new HashMap<>();
+        for (Map.Entry<String, byte[]> rendition : encoded.entrySet()) {
+            uploads.put(rendition.getKey(), s3Writer.put(bucket, renditionKey(id, rendition.getKey()),
+                    rendition.getValue(), "image/jpeg"));
+        }
+        S3Writer.awaitAll(new ArrayList<>(uploads.values()));
+        for (Map.Entry<String, Future<PutObjectResult>> upload : uploads.entrySet()) {
+            renditions.put(upload.getKey(), new Rendition(encoded.get(upload.getKey()),
+                    S3Writer.await(upload.getValue()).getETag(), new DateTime()));
+        }
+        synchronized (cache) {
+            if (isCurrent(id, ticket)) {
+                for (Map.Entry<String, Rendition> rendition : renditions.entrySet()) {
+                    cache(renditionKey(id, rendition.getKey()), rendition.getValue());
+                }
+            }
+        }
+        logger.info("Generated " + renditions.size() + " renditions of image " + id + " in "
+                + (System.currentTimeMillis() - started) + " ms");
+        return renditions;
+    }
+
+    // Helper method to read the ETag of an image in the bucket, null if missing
+    private String sourceEtag(String id) {
+        try {
+            return s3Client.getObjectMetadata(bucket, id).getETag();
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    // Helper method to read a rendition from the bucket, null if missing.
+    // Returns current as is if the stored rendition still has its ETag.
+    private Rendition load(String key, Rendition current) throws IOException {
+        final S3Object object;
+        try {
+            GetObjectRequest request = new GetObjectRequest(bucket, key);
+            if (current != null && current.etag != null) {
+                request.withNonmatchingETagConstraint(current.etag);
+            }
+            object = s3Client.getObject(request);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+        if (object == null) {
+            // Not modified.
+            return current;
+        }
+        S3ObjectInputStream in = object.getObjectContent();
+        try {
+            return new Rendition(IOUtils.toByteArray(in), object.getObjectMetadata().getETag(),
+                    new DateTime(object.getObjectMetadata().getLastModified()));
+        } finally {
+            in.close();
+        }
+    }
+
+    // Helper method to wait for a read or a generation, and to throw its failure
+    private static <T> T join(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a rendition");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException("Rendition failed", e.getCause());
+        }
+    }
+
+    // Helper method to decode an image subsampled to about the given width
+    // (at most twice as wide), band by band
+    private BufferedImage decode(String id, ImageInputStream iis, int width) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format of " + id);
+        }
+        ImageReader reader = readers.next();
+        try {
+            // Not seek forward only: each band is decoded from the start of the image.
+            reader.setInput(iis, false, true);
+            final int sourceWidth = reader.getWidth(0);
+            final int sourceHeight = reader.getHeight(0);
+            final int subsampling = Math.max(1, sourceWidth / width);
+            final int w = (sourceWidth + subsampling - 1) / subsampling;
+            final int h = (sourceHeight + subsampling - 1) / subsampling;
+            final int bandRows = (int) Math.max(1, Math.min(h, bandBytes 
+                    / DecodeScheduler.estimateBytes(w, 1)));
+            // The subsampled image and a band of it.
+            final long bytes = DecodeScheduler.estimateBytes(w, h + bandRows);
+            final DecodeScheduler.Permit permit;
+            try {
+                permit = decodeScheduler.await(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted decoding image " + id);
+            }
+            try {
+                BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = img.createGraphics();
+                try {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    for (int y = 0; y < h; y += bandRows) {
+                        // Bands start at multiples of the subsampling, so they line up.
+                        param.setSourceRegion(new Rectangle(0, y * subsampling, sourceWidth,
+                                Math.min(bandRows * subsampling, sourceHeight - y * subsampling)));
+                        g.drawImage(reader.read(0, param), 0, y, null);
+                    }
+                } finally {
+                    g.dispose();
+                }
+                return img;
+            } finally {
+                permit.release();
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // Helper method to scale an image down to a max. width
+    private static BufferedImage scale(BufferedImage img, int width) {
+        if (img.getWidth() <= width && img.getType() == BufferedImage.TYPE_INT_RGB) {
+            return img;
+        }
+        final int w = Math.min(width, img.getWidth());
+        final int h = Math.max(1, (int) Math.round((double) img.getHeight() * w / img.getWidth()));
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    // Helper method to encode a rendition as JPEG
+    private byte[] encode(BufferedImage img) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(baos)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return baos.toByteArray();
+    }
+
+    // Helper method to keep a rendition in memory, dropping the least
+    // recently used ones beyond the byte budget. Called with the lock held.
+    private void cache(String key, Rendition rendition) {
+        if (rendition.bytes.length > maxBytes) {
+            return;
+        }
+        Cached previous = cache.put(key, new Cached(rendition));
+        cachedBytes += rendition.bytes.length
+                - (previous == null ? 0 : previous.rendition.bytes.length);
+        Iterator<Cached> it = cache.values().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            cachedBytes -= it.next().rendition.bytes.length;
+            it.remove();
+        }
+    }
+
+    // Helper method to drop a rendition from memory. Called with the lock held.
+    private void drop(String key) {
+        Cached cached = cache.remove(key);
+        if (cached != null) {
+            cachedBytes -= cached.rendition.bytes.length;
+        }
+    }
+
+}
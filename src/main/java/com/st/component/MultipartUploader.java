@@ -0,0 +1,224 @@
+package com.st.component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.st.util.StringOperations;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Uploads objects to Amazon S3. Objects larger than the part size are split
+ * into parts which are uploaded concurrently on a bounded thread pool, and
+ * failed parts are retried. A failed multipart upload is aborted so that no
+ * orphan parts are left in the bucket. At most "parallelism" parts are held
+ * in memory per upload.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class MultipartUploader {
+
+    private static final Logger logger = Logger.getLogger(MultipartUploader.class);
+
+    /** Smallest part size accepted by S3 (except for the last part). */
+    public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /** Attempts per part before the upload is aborted. */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final AmazonS3Client s3Client;
+
+    private final long partSize;
+
+    private final int parallelism;
+
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     * @param s3Client the S3 client.
+     * @param partSize the size of the parts in bytes (min. 5 MB).
+     * @param parallelism the max. no. of parts uploaded at the same time.
+     */
+    public MultipartUploader(AmazonS3Client s3Client, long partSize, int parallelism) {
+        this.s3Client = s3Client;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.parallelism = Math.max(parallelism, 1);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(this.parallelism, this.parallelism,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "s3-upload-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Stops the upload threads (bean destroy method).
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Uploads the contents of a stream as an object.
+     * @param bucket the bucket.
+     * @param key the key of the object.
+     * @param om the metadata of the object.
+     * @param in the contents. The stream is not closed.
+     * @param length the number of bytes to read from the stream.
+     * @throws AmazonClientException if the upload failed.
+     */
+    public void upload(String bucket, String key, ObjectMetadata om, InputStream in, long length)
+            throws AmazonClientException {
+        final long started = System.currentTimeMillis();
+        if (length <= partSize) {
+            om.setContentLength(length);
+            s3Client.putObject(bucket, key, in, om);
+        } else {
+            uploadParts(bucket, key, om, in, length);
+        }
+        final long elapsed = Math.max(System.currentTimeMillis() - started, 1);
+        logger.info("Uploaded " + key + " to Amazon S3: "
+                + StringOperations.humanReadableByteCount(length) + " in " + elapsed + " ms ("
+                + StringOperations.humanReadableByteCount(length * 1000 / elapsed) + "/s)");
+    }
+
+    // Helper method to upload a stream in concurrent parts
+    private void uploadParts(String bucket, String key, ObjectMetadata om, InputStream in,
+            long length) throws AmazonClientException {
+        final String uploadId = s3Client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucket, key, om)).getUploadId();
+        final Semaphore inFlight = new Semaphore(parallelism);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<PartETag>> parts = new ArrayList<>();
+        boolean completed = false;
+        try {
+            int partNumber = 1;
+            for (long offset = 0; offset < length; offset += partSize, partNumber++) {
+                // Bounds the memory held by this upload.
+                inFlight.acquire();
+                if (failure.get() != null) {
+                    inFlight.release();
+                    break;
+                }
+                byte[] buffer = new byte[(int) Math.min(partSize, length - offset)];
+                try {
+                    IOUtils.readFully(in, buffer);
+                } catch (IOException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                parts.add(executor.submit(new PartUpload(bucket, key, uploadId, partNumber,
+                        buffer, inFlight, failure)));
+            }
+            List<PartETag> etags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts) {
+                etags.add(part.get());
+            }
+            s3Client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+            completed = true;
+        } catch (IOException e) {
+            throw new AmazonClientException("Failed to read upload of " + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted upload of " + key, e);
+        } catch (ExecutionException e) {
+            throw new AmazonClientException("Failed to upload part of " + key, e.getCause());
+        } finally {
+            if (!completed) {
+                for (Future<PartETag> part : parts) {
+                    part.cancel(true);
+                }
+                try {
+                    s3Client.abortMultipartUpload(
+                            new AbortMultipartUploadRequest(bucket, key, uploadId));
+                    logger.info("Aborted multipart upload of " + key);
+                } catch (AmazonClientException e) {
+                    logger.error("Failed to abort multipart upload of " + key, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Uploads a single part, with retries.
+     */
+    private class PartUpload implements Callable<PartETag> {
+
+        private final String bucket;
+        private final String key;
+        private final String uploadId;
+        private final int partNumber;
+        private final byte[] buffer;
+        private final Semaphore inFlight;
+        private final AtomicReference<Throwable> failure;
+
+        PartUpload(String bucket, String key, String uploadId, int partNumber, byte[] buffer,
+                Semaphore inFlight, AtomicReference<Throwable> failure) {
+            this.bucket = bucket;
+            this.key = key;
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.buffer = buffer;
+            this.inFlight = inFlight;
+            this.failure = failure;
+        }
+
+        @Override
+        public PartETag call() throws InterruptedException {
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        return s3Client.uploadPart(new UploadPartRequest()
+                                .withBucketName(bucket)
+                                .withKey(key)
+                                .withUploadId(uploadId)
+                                .withPartNumber(partNumber)
+                                .withPartSize(buffer.length)
+                                .withInputStream(new ByteArrayInputStream(buffer)))
+                                .getPartETag();
+                    } catch (AmazonClientException e) {
+                        if (attempt >= MAX_ATTEMPTS || failure.get() != null) {
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        }
+                        logger.warn("Retrying part " + partNumber + " of " + key, e);
+                        Thread.sleep(attempt * 1000L);
+                    }
+                }
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.st.component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded I/O executor of the S3 uploads. Uploads run on a fixed no. of
+ * threads, and at most maxQueued more wait for a thread: callers that would
+ * exceed it block, so the bytes of pending uploads are bounded too.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class S3Writer {
+
+    private final AmazonS3Client s3Client;
+
+    private final ExecutorService executor;
+
+    private final Semaphore slots;
+
+    /**
+     * Constructor.
+     * @param s3Client the S3 client.
+     * @param threads the max. no. of uploads at the same time.
+     * @param maxQueued the max. no. of uploads waiting for a thread.
+     */
+    public S3Writer(AmazonS3Client s3Client, int threads, int maxQueued) {
+        this.s3Client = s3Client;
+        this.slots = new Semaphore(Math.max(threads, 1) + Math.max(maxQueued, 0));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(threads, 1),
+                Math.max(threads, 1), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "s3-writer-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Stops the writer threads (bean destroy method).
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues the upload of an object held in memory.
+     * @param bucket the bucket.
+     * @param key the key.
+     * @param bytes the contents.
+     * @param contentType the content type.
+     * @return the result of the upload.
+     * @throws InterruptedIOException if interrupted waiting for a slot.
+     */
+    public Future<PutObjectResult> put(String bucket, String key, byte[] bytes, String contentType)
+            throws InterruptedIOException {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentType(contentType);
+        om.setContentLength(bytes.length);
+        return submit(new PutObjectRequest(bucket, key, new ByteArrayInputStream(bytes), om));
+    }
+
+    /**
+     * Queues the upload of an object from a file, which is streamed and must
+     * not be removed before the upload is done.
+     * @param bucket the bucket.
+     * @param key the key.
+     * @param file the contents.
+     * @param contentType the content type.
+     * @return the result of the upload.
+     * @throws InterruptedIOException if interrupted waiting for a slot.
+     */
+    public Future<PutObjectResult> put(String bucket, String key, File file, String contentType)
+            throws InterruptedIOException {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentType(contentType);
+        return submit(new PutObjectRequest(bucket, key, file).withMetadata(om));
+    }
+
+    // Helper method to queue an upload once there is a slot for it
+    private Future<PutObjectResult> submit(final PutObjectRequest request)
+            throws InterruptedIOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to upload " + request.getKey());
+        }
+        // The slot is given back when the upload is done, or cancelled before it ran.
+        FutureTask<PutObjectResult> upload = new FutureTask<PutObjectResult>(
+                new Callable<PutObjectResult>() {
+                    @Override
+                    public PutObjectResult call() {
+                        return s3Client.putObject(request);
+                    }
+                }) {
+                    @Override
+                    protected void done() {
+                        slots.release();
+                    }
+                };
+        try {
+            executor.execute(upload);
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+        return upload;
+    }
+
+    /**
+     * Waits for an upload.
+     * @param upload the upload.
+     * @return the result of the upload.
+     * @throws IOException if interrupted, or if the upload failed.
+     * @throws AmazonClientException if S3 rejected the upload.
+     */
+    public static PutObjectResult await(Future<PutObjectResult> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            upload.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an upload");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Upload failed", e.getCause());
+        }
+    }
+
+    /**
+     * Waits for several uploads. All are waited for, even if one fails, and
+     * the first failure is thrown.
+     * @param uploads the uploads.
+     * @throws IOException if interrupted, or if an upload failed.
+     * @throws AmazonClientException if S3 rejected an upload.
+     */
+    public static void awaitAll(List<Future<PutObjectResult>> uploads) throws IOException {
+        IOException ioFailure = null;
+        RuntimeException failure = null;
+        for (Future<PutObjectResult> upload : uploads) {
+            try {
+                await(upload);
+            } catch (InterruptedIOException e) {
+                for (Future<PutObjectResult> pending : uploads) {
+                    pending.cancel(true);
+                }
+                throw e;
+            } catch (IOException e) {
+                ioFailure = ioFailure == null ? e : ioFailure;
+            } catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (ioFailure != null) {
+            throw ioFailure;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
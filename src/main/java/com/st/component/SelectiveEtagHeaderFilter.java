@@ -0,0 +1,40 @@
+package com.st.component;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
+
+/**
+ * ShallowEtagHeaderFilter that skips the paths configured in the init-param
+ * "excludedPaths" (comma separated, relative to the context path). Paths
+ * ending with "/" are prefixes, others must match exactly (with or without a
+ * trailing "/").
+ * The shallow ETag filter buffers the whole response body in memory, which
+ * must be avoided for endpoints that stream large payloads.
+ */
+public class SelectiveEtagHeaderFilter extends ShallowEtagHeaderFilter {
+
+    private String[] excludedPaths = new String[0];
+
+    /**
+     * Sets the excluded paths (bound from the filter init-param).
+     * @param excludedPaths comma separated paths or path prefixes.
+     */
+    public void setExcludedPaths(String excludedPaths) {
+        this.excludedPaths = StringUtils.tokenizeToStringArray(excludedPaths, ",");
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) throws ServletException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String excluded : excludedPaths) {
+            if (excluded.endsWith("/") ? path.startsWith(excluded)
+                    : path.equals(excluded) || path.equals(excluded + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,529 @@
+package com.st.component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.model.TilePyramid;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Builds the deep-zoom tile pyramid of an image in the background and stores
+ * the tiles in the image bucket, under the "{id}/tiles/{version}/" prefix of
+ * the image, where the version is the ETag of the image. The descriptor of the
+ * pyramid (a TilePyramid) is stored last, so its presence means the pyramid
+ * is complete; the tiles of the previous versions are deleted after it.
+ *
+ * The image is never held in memory at once: it is decoded in a single
+ * sequential pass into a buffer of about bandBytes, which is passed on as a
+ * horizontal band each time it is full. Each level keeps a single row of
+ * tiles in memory, which is written out when it is full and halved into the
+ * level below. Tiles are uploaded by the S3 writer while decoding goes on.
+ *
+ * It is configured in mvc-dispatcher-servlet.xml
+ */
+public class TilePyramidBuilder {
+
+    private static final Logger logger = Logger.getLogger(TilePyramidBuilder.class);
+
+    /** Format of the tiles. */
+    public static final String FORMAT = "jpg";
+
+    /** Native metadata format of the JPEG reader. */
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+    /** Max. no. of keys of a multi-object delete on S3. */
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final AmazonS3Client s3Client;
+
+    private final S3Writer s3Writer;
+
+    private final String bucket;
+
+    private final int tileSize;
+
+    private final float quality;
+
+    private final long bandBytes;
+
+    private final ExecutorService executor;
+
+    private final DecodeScheduler decodeScheduler;
+
+    /**
+     * Constructor.
+     * @param s3Client the S3 client.
+     * @param s3Writer uploads the tiles.
+     * @param bucket the image bucket.
+     * @param tileSize the width and height of the tiles in pixels.
+     * @param quality the JPEG quality of the tiles, between 0 and 1.
+     * @param bandBytes approx. memory used to decode each band of the image.
+     * @param parallelism the max. no. of pyramids built at the same time.
+     * @param decodeScheduler admits the memory of each build.
+     */
+    public TilePyramidBuilder(AmazonS3Client s3Client, S3Writer s3Writer, String bucket,
+            int tileSize, float quality, long bandBytes, int parallelism,
+            DecodeScheduler decodeScheduler) {
+        this.s3Client = s3Client;
+        this.s3Writer = s3Writer;
+        this.decodeScheduler = decodeScheduler;
+        this.bucket = bucket;
+        // Even, so that full rows of tiles halve exactly.
+        this.tileSize = Math.max(tileSize, 16) & ~1;
+        this.quality = quality;
+        this.bandBytes = bandBytes;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(parallelism, 1),
+                Math.max(parallelism, 1), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tile-pyramid-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Stops the builder threads (bean destroy method).
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the key of the descriptor of the pyramid of an image.
+     * @param id the image name.
+     * @return the key.
+     */
+    public static String pyramidKey(String id) {
+        return id + "/tiles/pyramid.json";
+    }
+
+    /**
+     * Returns the key of a tile.
+     * @param id the image name.
+     * @param version the version of the pyramid.
+     * @param level the zoom level.
+     * @param x the column of the tile.
+     * @param y the row of the tile.
+     * @return the key.
+     */
+    public static String tileKey(String id, String version, int level, int x, int y) {
+        return tilesPrefix(id, version) + level + "/" + x + "_" + y + "." + FORMAT;
+    }
+
+    // Helper method to return the prefix of the tiles of a version
+    private static String tilesPrefix(String id, String version) {
+        return id + "/tiles/" + version + "/";
+    }
+
+    /**
+     * Queues the build of the pyramid of an image stored in the bucket.
+     * @param id the image name.
+     */
+    public void submit(final String id) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(id);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Failed to build the tile pyramid of image " + id, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the pyramid of an image stored in the bucket.
+     * @param id the image name.
+     * @return the descriptor of the pyramid.
+     * @throws IOException if the image cannot be decoded.
+     */
+    public TilePyramid build(String id) throws IOException {
+        final long started = System.currentTimeMillis();
+        S3Object object = s3Client.getObject(bucket, id);
+        // The version is the ETag of the bytes actually decoded.
+        final String version = object.getObjectMetadata().getETag();
+        S3ObjectInputStream in = object.getObjectContent();
+        boolean completed = false;
+        TilePyramid pyramid;
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format of " + id);
+            }
+            ImageReader reader = readers.next();
+            try {
+                // Not seek forward only, for the band reads of non sequential images.
+                reader.setInput(iis, false, true);
+                pyramid = new TilePyramid(id, version, reader.getWidth(0), reader.getHeight(0),
+                        tileSize, FORMAT);
+                final int bandRows = (int) Math.min(pyramid.getHeight(), Math.max(1, bandBytes
+                        / (4L * pyramid.getWidth() * tileSize)) * tileSize);
+                // A band, plus a row of tiles per level (about twice the top one).
+                final long bytes = DecodeScheduler.estimateBytes(pyramid.getWidth(),
+                        bandRows + 2L * tileSize);
+                List<Future<PutObjectResult>> uploads = new ArrayList<>();
+                final DecodeScheduler.Permit permit;
+                try {
+                    permit = decodeScheduler.await(bytes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted building the tile pyramid of " + id);
+                }
+                try {
+                    Level top = levels(pyramid, uploads);
+                    if (isSequential(reader) && (long) pyramid.getWidth()
+                            * pyramid.getHeight() <= Integer.MAX_VALUE) {
+                        decodeSequential(reader, top, pyramid.getWidth(), pyramid.getHeight(),
+                                bandRows);
+                    } else {
+                        // Each band is decoded from the start of the image.
+                        ImageReadParam param = reader.getDefaultReadParam();
+                        for (int y = 0; y < pyramid.getHeight(); y += bandRows) {
+                            param.setSourceRegion(new Rectangle(0, y, pyramid.getWidth(),
+                                    Math.min(bandRows, pyramid.getHeight() - y)));
+                            top.append(reader.read(0, param));
+                        }
+                    }
+                    top.flush();
+                } finally {
+                    permit.release();
+                }
+                S3Writer.awaitAll(uploads);
+                completed = true;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            if (completed) {
+                in.close();
+            } else {
+                in.abort();
+            }
+        }
+        if (!version.equals(s3Client.getObjectMetadata(bucket, id).getETag())) {
+            // Replaced in the meantime: the build of the new image stores its pyramid.
+            logger.info("Image " + id + " changed while building its tile pyramid");
+            deleteTiles(id, version, true);
+            return null;
+        }
+        byte[] descriptor = MAPPER.writeValueAsBytes(pyramid);
+        S3Writer.await(s3Writer.put(bucket, pyramidKey(id), descriptor, "application/json"));
+        deleteTiles(id, version, false);
+        logger.info("Built the tile pyramid of image " + id + ": " + pyramid.getWidth()
+                + "x" + pyramid.getHeight() + ", " + (pyramid.getMaxLevel() + 1)
+                + " levels in " + (System.currentTimeMillis() - started) + " ms");
+        return pyramid;
+    }
+
+    // Helper method to check that an image is decoded in a single top-down
+    // pass, as baseline and extended sequential JPEG images are
+    private static boolean isSequential(ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || !JPEG_METADATA.equals(metadata.getNativeMetadataFormatName())) {
+            return false;
+        }
+        NodeList sof = ((Element) metadata.getAsTree(JPEG_METADATA)).getElementsByTagName("sof");
+        // Processes 0 and 1 are sequential, 2 is progressive.
+        return sof.getLength() == 1
+                && !"2".equals(((Element) sof.item(0)).getAttribute("process"));
+    }
+
+    // Helper method to decode a sequential image in a single pass. The
+    // decoder writes into a destination whose rows wrap around a buffer of
+    // bandRows rows, which is appended to the top level each time it is full.
+    private static void decodeSequential(final ImageReader reader, final Level top,
+            final int width, final int height, final int bandRows) throws IOException {
+        final BandBuffer buffer = new BandBuffer(width * height, width * bandRows);
+        final DirectColorModel rgb = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+        BufferedImage destination = new BufferedImage(rgb, Raster.createWritableRaster(
+                new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height,
+                        rgb.getMasks()), buffer, null), false, null);
+        final BufferedImage band = new BufferedImage(rgb, Raster.createWritableRaster(
+                new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, bandRows,
+                        rgb.getMasks()), new DataBufferInt(buffer.pixels, buffer.pixels.length),
+                null), false, null);
+        final IOException[] failure = new IOException[1];
+        IIOReadUpdateListener listener = new IIOReadUpdateListener() {
+            @Override
+            public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY,
+                    int w, int h, int periodX, int periodY, int[] bands) {
+                for (int y = minY; y < minY + h && failure[0] == null; y++) {
+                    if ((y + 1) % bandRows == 0 || y == height - 1) {
+                        try {
+                            top.append(band.getSubimage(0, 0, width, y % bandRows + 1));
+                        } catch (IOException e) {
+                            failure[0] = e;
+                            reader.abort();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void passStarted(ImageReader source, BufferedImage image, int pass,
+                    int minPass, int maxPass, int minX, int minY, int periodX, int periodY,
+                    int[] bands) {
+            }
+
+            @Override
+            public void passComplete(ImageReader source, BufferedImage image) {
+            }
+
+            @Override
+            public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail,
+                    int pass, int minPass, int maxPass, int minX, int minY, int periodX,
+                    int periodY, int[] bands) {
+            }
+
+            @Override
+            public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX,
+                    int minY, int w, int h, int periodX, int periodY, int[] bands) {
+            }
+
+            @Override
+            public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+            }
+        };
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(destination);
+        reader.addIIOReadUpdateListener(listener);
+        try {
+            reader.read(0, param);
+        } finally {
+            reader.removeIIOReadUpdateListener(listener);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Pixels of an image of size pixels, of which only the last period
+     * pixels written are kept.
+     */
+    private static class BandBuffer extends DataBuffer {
+
+        final int[] pixels;
+
+        BandBuffer(int size, int period) {
+            super(TYPE_INT, size);
+            this.pixels = new int[period];
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return pixels[i % pixels.length];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            pixels[i % pixels.length] = val;
+        }
+    }
+
+    // Helper method to delete the tiles of the other versions of an image,
+    // or of the given version
+    private void deleteTiles(String id, String version, boolean ofVersion) {
+        try {
+            ObjectListing listing = s3Client.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket)
+                    .withPrefix(id + "/tiles/")
+                    .withMaxKeys(MAX_KEYS_PER_DELETE));
+            while (true) {
+                List<KeyVersion> keys = new ArrayList<>();
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                    final String key = summary.getKey();
+                    if (!key.equals(pyramidKey(id))
+                            && key.startsWith(tilesPrefix(id, version)) == ofVersion) {
+                        keys.add(new KeyVersion(key));
+                    }
+                }
+                if (!keys.isEmpty()) {
+                    DeleteObjectsRequest request = new DeleteObjectsRequest(bucket);
+                    request.setQuiet(true);
+                    request.setKeys(keys);
+                    s3Client.deleteObjects(request);
+                }
+                if (!listing.isTruncated()) {
+                    return;
+                }
+                listing = s3Client.listNextBatchOfObjects(listing);
+            }
+        } catch (AmazonClientException e) {
+            // They are deleted with the image anyway.
+            logger.warn("Could not delete old tiles of image " + id + ": " + e.getMessage());
+        }
+    }
+
+    // Helper method to create the levels of a pyramid, returns the top one
+    private Level levels(TilePyramid pyramid, List<Future<PutObjectResult>> uploads) {
+        Level below = null;
+        for (int level = 0; level <= pyramid.getMaxLevel(); level++) {
+            final int shift = pyramid.getMaxLevel() - level;
+            below = new Level(pyramid.getImage(), pyramid.getVersion(), level,
+                    (int) (((long) pyramid.getWidth() + (1L << shift) - 1) >> shift),
+                    (int) (((long) pyramid.getHeight() + (1L << shift) - 1) >> shift), below,
+                    uploads);
+        }
+        return below;
+    }
+
+    /**
+     * A level of a pyramid being built. Rows of pixels are appended from the
+     * top; every full row of tiles is stored and then halved into the level
+     * below.
+     */
+    private class Level {
+
+        private final String id;
+        private final String version;
+        private final int level;
+        private final int width;
+        private final int height;
+        private final Level below;
+        private final List<Future<PutObjectResult>> uploads;
+        private final BufferedImage pending;
+        private int filled = 0;
+        private int tileRow = 0;
+
+        Level(String id, String version, int level, int width, int height, Level below,
+                List<Future<PutObjectResult>> uploads) {
+            this.id = id;
+            this.version = version;
+            this.level = level;
+            this.width = width;
+            this.height = height;
+            this.below = below;
+            this.uploads = uploads;
+            this.pending = new BufferedImage(width, Math.min(tileSize, height),
+                    BufferedImage.TYPE_INT_RGB);
+        }
+
+        void append(BufferedImage rows) throws IOException {
+            Graphics2D g = pending.createGraphics();
+            try {
+                int offset = 0;
+                while (offset < rows.getHeight()) {
+                    final int n = Math.min(pending.getHeight() - filled, rows.getHeight() - offset);
+                    g.drawImage(rows.getSubimage(0, offset, Math.min(width, rows.getWidth()), n),
+                            0, filled, null);
+                    filled += n;
+                    offset += n;
+                    if (filled == pending.getHeight()) {
+                        emit();
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+
+        void flush() throws IOException {
+            if (filled > 0) {
+                emit();
+            }
+            if (below != null) {
+                below.flush();
+            }
+        }
+
+        // Stores the row of tiles and passes it, halved, to the level below
+        private void emit() throws IOException {
+            for (int x = 0; x * tileSize < width; x++) {
+                BufferedImage tile = pending.getSubimage(x * tileSize, 0,
+                        Math.min(tileSize, width - x * tileSize), filled);
+                uploads.add(s3Writer.put(bucket, tileKey(id, version, level, x, tileRow), encode(tile),
+                        "image/jpeg"));
+            }
+            if (below != null) {
+                below.append(halve(pending.getSubimage(0, 0, width, filled)));
+            }
+            tileRow++;
+            filled = 0;
+        }
+    }
+
+    // Helper method to scale an image to half its size (rounding up)
+    private static BufferedImage halve(BufferedImage img) {
+        BufferedImage half = new BufferedImage((img.getWidth() + 1) / 2, (img.getHeight() + 1) / 2,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = half.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, half.getWidth(), half.getHeight(), null);
+        } finally {
+            g.dispose();
+        }
+        return half;
+    }
+
+    // Helper method to encode a tile as JPEG
+    private byte[] encode(BufferedImage tile) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(baos)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(tile, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return baos.toByteArray();
+    }
+
+}
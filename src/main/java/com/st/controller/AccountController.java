@@ -11,17 +11,20 @@ import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
 import com.st.model.Account;
 import com.st.model.AccountId;
-import com.st.model.Dataset;
+import com.st.model.DeletionJob;
 import com.st.model.LastModifiedDate;
 import com.st.serviceImpl.AccountServiceImpl;
 import com.st.serviceImpl.DatasetInfoServiceImpl;
-import com.st.serviceImpl.DatasetServiceImpl;
+import com.st.serviceImpl.DeletionJobServiceImpl;
 import com.st.util.DateOperations;
 import static com.st.util.DateOperations.checkIfModified;
 import static com.st.util.HTTPOperations.getHTTPHeaderWithCache;
+import com.st.util.CursorOperations.CursorIterator;
+import com.st.util.JSONOperations;
+import java.io.IOException;
 import java.security.Principal;
-import java.util.Iterator;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -62,7 +65,7 @@ public class AccountController {
     DatasetInfoServiceImpl datasetinfoService;
 
     @Autowired
-    DatasetServiceImpl datasetService;
+    DeletionJobServiceImpl deletionJobService;
 
     @Autowired
     PasswordEncoder passwordEncoder;
@@ -70,31 +73,23 @@ public class AccountController {
     /**
      * GET|HEAD /account/
      * 
-     * Lists enabled/disabled accounts.
+     * Lists enabled/disabled accounts. The accounts are written to the
+     * response one by one as they are read from the database.
      * @param onlyEnabled when true filter out disabled accounts
-     * @return the list.
+     * @param response HTTP response containing the list.
      */
     @Secured({"ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody List<Account> list(
-            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "false") boolean onlyEnabled) {     
-        List<Account> accounts = accountService.list();
-        if (accounts == null) {
-            logger.info("Returning empty list of accounts");
-            throw new CustomNotFoundException("No accounts found or you don't have permissions to access");
-        } 
-        // remove disabled accounts
-        if (onlyEnabled) {
-            Iterator<Account> it = accounts.iterator();
-            while (it.hasNext()) {
-                Account account = it.next(); // must be called before you can call i.remove()
-                if (!account.isEnabled()) {
-                    it.remove();
-                }
-            }
+    public void list(
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "false") boolean onlyEnabled,
+            HttpServletResponse response) {
+        try (CursorIterator<Account> accounts = accountService.iterate(onlyEnabled)) {
+            final long count = JSONOperations.writeArray(accounts, response);
+            logger.info("Returning list of " + count + " accounts");
+        } catch (IOException ex) {
+            logger.error("Error writing list of accounts to output stream");
+            throw new RuntimeException("IOError writing list to HTTP response", ex);
         }
-        logger.info("Returning list of accounts");
-        return accounts;
     }
     
     
@@ -290,7 +285,6 @@ public class AccountController {
             account.setPassword(passwordEncoder.encode(account.getPassword()));
         }
         if (accountService.update(account)) {
-            //TODO should be performed only if the list of granted accounts changed
             datasetinfoService.updateForAccount(account.getId(), account.getGranted_datasets());
             logger.info("Successfully updated account " + account.getId());
         } else {
@@ -303,32 +297,24 @@ public class AccountController {
     /**
      * DELETE /account/{id}
      * 
-     * Deletes an account
+     * Deletes an account. The account, its grants and (with cascade) its
+     * granted datasets and their files are deleted by a background job
+     * (see /deletionjob/{id}), which is retried if it fails. Without cascade, datasets are
+     * kept as other users can access them, and their creator is cleared.
      * @param id the account ID.
      * @param cascade true to cascade delete.
+     * @return the deletion job (202 Accepted).
      */
     @Secured({"ROLE_ADMIN"})
     @RequestMapping(value = "{id}", method = RequestMethod.DELETE)
+    @ResponseStatus(value = HttpStatus.ACCEPTED)
     public @ResponseBody
-    void delete(@PathVariable String id,
+    DeletionJob delete(@PathVariable String id,
             @RequestParam(value = "cascade", required = false, defaultValue = "false") boolean cascade) {
-        if (accountService.delete(id)) {
-            //TODO A error-safe transactional approach should be used here
-            if (cascade) {
-                // Deleting the datasets created by the user
-                List<Dataset> datasets = datasetService.findByAccount(id);
-                for (Dataset dataset : datasets) {
-                    datasetService.delete(dataset.getId());
-                }
-                logger.info("Successfully cascade-deleted dependencies for account " + id);
-            } else {
-                // Datasets and experiments are not deleted as they can be
-                // accessed by other users so we reset their account field
-                datasetService.clearAccountCreator(id);
-            }
-            // Always delete the dataset info and selections for the deleted account
-            datasetinfoService.deleteForAccount(id);
-            logger.info("Successfully deleted account " + id);
+        DeletionJob job = deletionJobService.deleteAccount(id, cascade);
+        if (job != null) {
+            logger.info("Account " + id + " and its dependencies are deleted by job " + job.getId());
+            return job;
         } else {
             logger.error("Failed to delete account " + id + " Missing permissions.");
             throw new CustomBadRequestException("You do not have permission to delete this account.");           
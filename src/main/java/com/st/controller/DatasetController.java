@@ -10,14 +10,20 @@ import com.st.exceptions.CustomNotModifiedException;
 import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
 import com.st.model.Dataset;
+import com.st.model.DeletionJob;
+import com.st.model.IndexStatistics;
 import com.st.model.LastModifiedDate;
 import com.st.serviceImpl.DatasetInfoServiceImpl;
 import com.st.serviceImpl.DatasetServiceImpl;
+import com.st.serviceImpl.DeletionJobServiceImpl;
 import com.st.util.DateOperations;
 import static com.st.util.DateOperations.checkIfModified;
 import static com.st.util.HTTPOperations.getHTTPHeaderWithCache;
-import java.util.Iterator;
+import com.st.util.CursorOperations.CursorIterator;
+import com.st.util.JSONOperations;
+import java.io.IOException;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -52,33 +58,50 @@ public class DatasetController {
     private static final Logger logger = Logger
             .getLogger(DatasetController.class);
 
+    /** Max. no. of datasets returned per page. */
+    private static final int MAX_PAGE_SIZE = 1000;
+
     @Autowired
     DatasetServiceImpl datasetService;
 
     @Autowired
     DatasetInfoServiceImpl datasetInfoService;
 
+    @Autowired
+    DeletionJobServiceImpl deletionJobService;
+
     /**
      * GET|HEAD /dataset/
      * GET|HEAD /dataset/?account={accountId}
+     * GET|HEAD /dataset/?limit={limit}&after={lastId}&fields={field1,field2}
      * 
-     * Lists enabled/disabled datasets.
+     * Lists enabled/disabled datasets. With a limit, datasets are returned in
+     * ID order and the next page is requested with the ID of the last dataset
+     * of the previous one.
      * @param accountId the account ID.
      * @param onlyEnabled when true filters out disabled datasets
-     * @return the list.
+     * @param limit the max. no. of datasets returned (max. 1000).
+     * @param after the ID of the last dataset of the previous page.
+     * @param fields comma separated fields to return, all if not given.
+     * @param response HTTP response containing the list.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody List<Dataset> list(
+    public void list(
             @RequestParam(value = "account", required = false) String accountId,
-            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "true") boolean onlyEnabled) {
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "true") boolean onlyEnabled,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam(value = "fields", required = false) String fields,
+            HttpServletResponse response) {
         
-        List<Dataset> datasets;
-        if (accountId != null) {
-            datasets = datasetService.findByAccount(accountId);
-        } else {
-            datasets = datasetService.list();
+        if (limit != null && (limit <= 0 || limit > MAX_PAGE_SIZE)) {
+            throw new CustomBadRequestException("The limit must be between 1 and " + MAX_PAGE_SIZE + ".");
         }
+        String[] projection = fields == null || fields.trim().isEmpty() 
+                ? new String[0] : fields.trim().split("\\s*,\\s*");
+        CursorIterator<Dataset> datasets = datasetService.iteratePage(accountId, onlyEnabled, after,
+                limit == null ? 0 : limit, projection);
         
         if (datasets == null) {
             logger.info("Returning empty list of datasets");
@@ -86,18 +109,16 @@ public class DatasetController {
                     + "permissions to access");
         }
         
-        if (onlyEnabled) {
-            Iterator<Dataset> it = datasets.iterator();
-            while (it.hasNext()) {
-                Dataset dataset = it.next(); // must be called before you can call i.remove()
-                if (!dataset.getEnabled()) {
-                    it.remove();
-                }
-            }
+        // Datasets are written one by one as they are read from the cursor.
+        try {
+            final long count = JSONOperations.writeArray(datasets, response);
+            logger.info("Returning list of " + count + " datasets");
+        } catch (IOException ex) {
+            logger.error("Error writing list of datasets to output stream");
+            throw new RuntimeException("IOError writing list to HTTP response", ex);
+        } finally {
+            datasets.close();
         }
-        
-        logger.info("Returning list of datasets");
-        return datasets;
     }
     
     /**
@@ -228,7 +249,7 @@ public class DatasetController {
         }
         
         if (datasetService.update(ds)) {
-            //TODO should be performed only if the list of granted accounts changed
+            // Only writes the grants that changed
             datasetInfoService.updateForDataset(ds.getId(), ds.getGrantedAccounts());
             logger.info("Successfully updated dataset " + ds.getId());
         } else {
@@ -241,24 +262,42 @@ public class DatasetController {
     /**
      * DELETE /dataset/{id}
      * 
-     * Deletes a dataset.
+     * Deletes a dataset. The dataset, its grants and its files are deleted
+     * by a background job (see /deletionjob/{id}), which is resumed if the
+     * server stops before it is done.
      * @param id the dataset ID.
+     * @return the deletion job (202 Accepted).
      */
     @Secured({"ROLE_CM", "ROLE_ADMIN", "ROLE_USER"})
     @RequestMapping(value = "{id}", method = RequestMethod.DELETE)
+    @ResponseStatus(value = HttpStatus.ACCEPTED)
     public @ResponseBody
-    void delete(@PathVariable String id) {
-        //TODO A error-safe transactional approach should be used here
-        if (datasetService.delete(id)) {
-            datasetInfoService.deleteForDataset(id);
-            logger.info("Successfully deleted dataset and features for dataset " + id);
-        } else {
+    DeletionJob delete(@PathVariable String id) {
+        DeletionJob job = deletionJobService.deleteDataset(id);
+        if (job == null) {
             logger.error("Failed to delete dataset " + id + " Missing permissions.");
             throw new CustomBadRequestException("You are not allowed to delete this dataset."); 
         }
+        logger.info("Accepted deletion of dataset " + id + " as job " + job.getId());
+        return job;
     }
     
     
+    /**
+     * GET|HEAD /dataset/grants/statistics
+     * 
+     * Returns the size, memory use and rebuild time of the in-memory index
+     * of dataset grants.
+     * @return the statistics.
+     */
+    @Secured({"ROLE_ADMIN"})
+    @RequestMapping(value = "/grants/statistics", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    IndexStatistics getGrantStatistics() {
+        logger.info("Returning statistics of the grants index");
+        return datasetService.getGrantStatistics();
+    }
+
     /**
      * Static access to dataset service.
      * @return the bean.
@@ -0,0 +1,71 @@
+package com.st.controller;
+
+import com.st.exceptions.CustomInternalServerErrorException;
+import com.st.exceptions.CustomInternalServerErrorResponse;
+import com.st.exceptions.CustomNotFoundException;
+import com.st.exceptions.NotFoundResponse;
+import com.st.model.DeletionJob;
+import com.st.serviceImpl.DeletionJobServiceImpl;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This class is Spring MVC controller class for the API endpoint "rest/deletionjob". 
+ * It implements the methods available at this endpoint. Deletion jobs are
+ * created by the DELETE methods of datasets and accounts.
+ */
+@Controller
+@RequestMapping("/rest/deletionjob")
+public class DeletionJobController {
+
+    private static final Logger logger = Logger
+            .getLogger(DeletionJobController.class);
+
+    @Autowired
+    DeletionJobServiceImpl deletionJobService;
+
+    /**
+     * GET|HEAD /deletionjob/{id}
+     * 
+     * Returns the status and progress of a deletion job.
+     * @param id the job ID.
+     * @return the job.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    DeletionJob get(@PathVariable String id) {
+        DeletionJob job = deletionJobService.find(id);
+        if (job == null) {
+            logger.info("Failed to return deletion job " + id);
+            throw new CustomNotFoundException("A deletion job with ID " + id + " doesn't exist, "
+                    + "or you don't have permissions to access");
+        }
+        logger.info("Returning deletion job " + id);
+        return job;
+    }
+
+    @ExceptionHandler(CustomNotFoundException.class)
+    @ResponseStatus(value = HttpStatus.NOT_FOUND)
+    public @ResponseBody
+    NotFoundResponse handleNotFoundException(CustomNotFoundException ex) {
+        return new NotFoundResponse(ex.getMessage());
+    }
+
+    @ExceptionHandler(CustomInternalServerErrorException.class)
+    @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR)
+    public @ResponseBody
+    CustomInternalServerErrorResponse handleInternalServerException(CustomInternalServerErrorException ex) {
+        logger.error("Internal server error in deletion job controller: " + ex.getMessage());
+        return new CustomInternalServerErrorResponse(ex.getMessage());
+    }
+}
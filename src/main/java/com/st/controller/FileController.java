@@ -8,15 +8,23 @@ import com.st.exceptions.CustomNotFoundException;
 import com.st.exceptions.CustomNotModifiedException;
 import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
+import com.st.model.CacheStatistics;
 import com.st.model.FileMetadata;
 import com.st.model.LastModifiedDate;
 import com.st.serviceImpl.FileServiceImpl;
 import com.st.serviceImpl.MongoUserDetailsServiceImpl;
 import com.st.util.DateOperations;
+import com.st.util.HTTPOperations;
+import com.st.util.HTTPOperations.ByteRange;
+import static com.st.util.DateOperations.checkIfModified;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -53,54 +61,90 @@ public class FileController {
     MongoUserDetailsServiceImpl customUserDetailsService;
     
     /**
-     * Returns the gzipped file requested for the given dataset.
+     * Returns the gzipped file requested for the given dataset. The file is
+     * streamed from S3 straight into the response. Single and multiple byte
+     * ranges of the gzipped file are supported (206 Partial Content).
+     * Conditional requests are answered from the file metadata only, before
+     * any of the file is fetched.
      *
      * @param filename the name of the file
      * @param id dataset ID.
+     * @param request HTTP request.
      * @param response HTTP response containing the file.
      * @param ifModifiedSince last modified tag.
+     * @param ifNoneMatch entity tags of the client copies, if any.
+     * @param range the requested byte ranges, if any.
+     * @param ifRange the validator the ranges are conditional on, if any.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(value = "{id}", method = {RequestMethod.GET, RequestMethod.HEAD}, 
             produces = MediaType.TEXT_PLAIN_VALUE)
     public void getAsFile(
-            @PathVariable String id, HttpServletResponse response,
+            @PathVariable String id, HttpServletRequest request, HttpServletResponse response,
             @RequestParam(value = "filename", required = true) String filename, 
-            @RequestHeader(value = "If-Modified-Since", defaultValue = "") String ifModifiedSince) {
+            @RequestHeader(value = "If-Modified-Since", defaultValue = "") String ifModifiedSince,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Range", required = false) String range,
+            @RequestHeader(value = "If-Range", required = false) String ifRange) {
+        FileMetadata meta = filesService.getMetadata(filename, id);
+        if (meta == null) {
+            logger.info("Failed to return meta info for file  " + id);
+            throw new CustomNotFoundException("A file for a dataset with "
+                    + "this ID does not exist, or you dont have permissions to access it.");                
+        }
+        // Validators are sent on 304 responses too.
+        final String etag = HTTPOperations.toEntityTag(meta.getEtag());
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        response.addHeader("Last-modified", DateOperations.getHTTPDateSafely(meta.getLastModified()));
+        // Check if already newest. If-None-Match takes precedence over If-Modified-Since.
+        if (HTTPOperations.isNotModified(ifNoneMatch, ifModifiedSince, etag, meta.getLastModified())) {
+            logger.info("Not returning file for dataset " + id + " since not modified");
+            throw new CustomNotModifiedException("This file has not been modified");
+        }
+        // Headers must be set before the body is written.
+        final long size = meta.getSize();
+        response.addHeader("Accept-Ranges", "bytes");
+        response.addHeader("Cache-Control", "public, must-revalidate, no-transform");
+        response.addHeader("Vary", "Accept-Encoding");
+        List<ByteRange> ranges = null;
+        if (isRangeApplicable(ifRange, meta)) {
+            ranges = HTTPOperations.parseRangeHeader(range, size);
+        }
+        if (ranges != null && ranges.isEmpty()) {
+            logger.info("Not returning file for dataset " + id + " since range is not satisfiable");
+            response.setHeader("Content-Range", "bytes */" + size);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        if (ranges == null || RequestMethod.HEAD.name().equals(request.getMethod())) {
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.setHeader("Content-Length", Long.toString(size));
+            response.addHeader("Content-Encoding", "gzip");
+        }
+        if (RequestMethod.HEAD.name().equals(request.getMethod())) {
+            logger.info("Returning headers of file for dataset " + id);
+            return;
+        }
         try {
-            FileMetadata meta = filesService.getMetadata(filename, id);
-            if (meta == null) {
-                logger.info("Failed to return meta info for file  " + id);
-                throw new CustomNotFoundException("A file for a dataset with "
-                        + "this ID does not exist, or you dont have permissions to access it.");                
+            final long written;
+            if (ranges == null) {
+                // Copy raw S3 stream into response.
+                written = filesService.stream(filename, id, response.getOutputStream());
+            } else if (ranges.size() == 1) {
+                written = writeRange(filename, id, size, ranges.get(0), response);
+            } else {
+                written = writeRanges(filename, id, size, ranges, response);
             }
-            InputStream is = filesService.find(filename, id);
-            if (is == null) {
+            if (written < 0) {
                 logger.info("Failed to return file  " + id);
+                if (!response.isCommitted()) {
+                    response.reset();
+                }
                 throw new CustomNotFoundException("A file for a dataset with "
                         + "this ID does not exist, or you dont have permissions to access it.");
             }
-            // Check if already newest.
-            DateTime reqTime = DateOperations.parseHTTPDate(ifModifiedSince);
-            if (reqTime != null) {
-                DateTime resTime = meta.getLastModified() == null ? 
-                        new DateTime(2012,1,1,0,0) : meta.getLastModified();
-                // NOTE: Only precision within day.
-                resTime = new DateTime(resTime.getYear(), resTime.getMonthOfYear(), 
-                        resTime.getDayOfMonth(), resTime.getHourOfDay(), 
-                        resTime.getMinuteOfHour(), resTime.getSecondOfMinute());
-                if (!resTime.isAfter(reqTime)) {
-                    logger.info("Not returning file for dataset " + id + " since not modified");
-                    throw new CustomNotModifiedException("This file has not been modified");
-                }
-            }
-            // Copy raw stream into response.
-            IOUtils.copy(is, response.getOutputStream());
-            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
-            response.addHeader("Content-Encoding", "gzip");
-            response.addHeader("Cache-Control", "public, must-revalidate, no-transform");
-            response.addHeader("Vary", "Accept-Encoding");
-            response.addHeader("Last-modified", DateOperations.getHTTPDateSafely(meta.getLastModified()));
             logger.info("Returning file as raw gzip file for dataset " + id);
             response.flushBuffer();
         } catch (IOException ex) {
@@ -109,6 +153,71 @@ public class FileController {
         }
     }
 
+    // Helper method to check an If-Range validator against the file.
+    // Ranges are only honoured if the client copy is still current.
+    private boolean isRangeApplicable(String ifRange, FileMetadata meta) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("W/")) {
+            // Weak entity tags never match for ranges.
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(HTTPOperations.toEntityTag(meta.getEtag()));
+        }
+        try {
+            DateTime rangeTime = DateOperations.parseHTTPDate(ifRange);
+            return rangeTime != null && !checkIfModified(meta.getLastModified(), rangeTime);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Helper method to write a single range as 206 Partial Content.
+    private long writeRange(String filename, String id, long size, ByteRange range, 
+            HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setHeader("Content-Range", range.toContentRange(size));
+        response.setHeader("Content-Length", Long.toString(range.getLength()));
+        response.addHeader("Content-Encoding", "gzip");
+        return filesService.stream(filename, id, range.start, range.end, 
+                response.getOutputStream());
+    }
+
+    // Helper method to write several ranges as a multipart/byteranges 
+    // 206 Partial Content. Each range is a separate ranged S3 request.
+    private long writeRanges(String filename, String id, long size, List<ByteRange> ranges, 
+            HttpServletResponse response) throws IOException {
+        final String boundary = UUID.randomUUID().toString().replace("-", "");
+        final String[] partHeaders = new String[ranges.size()];
+        final String closing = "\r\n--" + boundary + "--\r\n";
+        long length = closing.length();
+        for (int i = 0; i < ranges.size(); i++) {
+            partHeaders[i] = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + MediaType.TEXT_PLAIN_VALUE + "\r\n"
+                    + "Content-Range: " + ranges.get(i).toContentRange(size) + "\r\n\r\n";
+            length += partHeaders[i].length() + ranges.get(i).getLength();
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", Long.toString(length));
+        OutputStream out = response.getOutputStream();
+        long written = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(partHeaders[i].getBytes(StandardCharsets.US_ASCII));
+            final long n = filesService.stream(filename, id, ranges.get(i).start, 
+                    ranges.get(i).end, out);
+            if (n < 0) {
+                return -1;
+            }
+            written += n;
+        }
+        out.write(closing.getBytes(StandardCharsets.US_ASCII));
+        return written;
+    }
+
     /**
      * PUT /files/?filename=xx
      * 
@@ -124,16 +233,17 @@ public class FileController {
             @PathVariable String id, 
             @RequestParam(value = "filename", required = true) String filename,
             @RequestBody MultipartFile file) {
-        byte[] bytes = null;
-        try {
-            bytes = file.getBytes();
-        } catch (IOException ex) {
-            logger.error("Failed to add file for dataset " + id + ". Invalid file?", ex);
-            throw new CustomBadRequestException("Failed to add file for dataset " 
-                    + id + ". Is the file valid?");
-        }
-        if (id != null && bytes != null && bytes.length != 0) {
-            final boolean updated = filesService.addUpdate(filename, id, bytes);
+        if (id != null && file != null && !file.isEmpty()) {
+            // The upload is streamed to S3 from the multipart stream (the
+            // commons-fileupload temp file for large uploads).
+            boolean updated;
+            try (InputStream is = file.getInputStream()) {
+                updated = filesService.addUpdate(filename, id, is, file.getSize());
+            } catch (IOException ex) {
+                logger.error("Failed to add file for dataset " + id + ". Invalid file?", ex);
+                throw new CustomBadRequestException("Failed to add file for dataset " 
+                        + id + ". Is the file valid?");
+            }
             if (updated) {
                 logger.info("Updated/Added file for dataset " + id);
             } else {
@@ -193,6 +303,20 @@ public class FileController {
         return new LastModifiedDate(feat.getLastModified());
     }
 
+    /**
+     * GET|HEAD /files/cache/statistics
+     * 
+     * Returns the usage counters of the local disk cache of files.
+     * @return the statistics.
+     */
+    @Secured({"ROLE_ADMIN"})
+    @RequestMapping(value = "/cache/statistics", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    CacheStatistics getCacheStatistics() {
+        logger.info("Returning statistics of the files cache");
+        return filesService.getCacheStatistics();
+    }
+
     @ExceptionHandler(CustomNotModifiedException.class)
     @ResponseStatus(value = HttpStatus.NOT_MODIFIED)
     public @ResponseBody
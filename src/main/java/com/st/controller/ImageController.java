@@ -6,15 +6,31 @@ import com.st.exceptions.CustomInternalServerErrorException;
 import com.st.exceptions.CustomInternalServerErrorResponse;
 import com.st.exceptions.CustomNotFoundException;
 import com.st.exceptions.CustomNotModifiedException;
+import com.st.exceptions.CustomServiceUnavailableException;
 import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
+import com.st.exceptions.ServiceUnavailableResponse;
+import com.st.component.ImageRenditions;
+import com.st.model.DecodeStatistics;
 import com.st.model.FileMetadata;
 import com.st.model.LastModifiedDate;
+import com.st.model.TilePyramid;
 import com.st.serviceImpl.ImageServiceImpl;
+import com.st.util.DateOperations;
+import com.st.util.HTTPOperations;
+import com.st.util.JSONOperations;
+import com.st.util.S3Operations.StoredObject;
 import java.awt.image.BufferedImage;
-import java.util.List;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.security.access.annotation.Secured;
@@ -22,8 +38,10 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
@@ -42,52 +60,382 @@ public class ImageController {
     private static final Logger logger = Logger
             .getLogger(ImageController.class);
 
+    /** Max. no. of images returned per page. */
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /** Max. no. of pixels of a region (after scaling). */
+    private static final int MAX_REGION_PIXELS = 4096 * 4096;
+
+    private @Value("${tiles.maxageseconds}")
+    long tileMaxAgeSeconds;
+
+    private @Value("${cache.imagesmaxageseconds}")
+    long imageMaxAgeSeconds;
+
+    private @Value("${cache.renditionsmaxageseconds}")
+    long renditionMaxAgeSeconds;
+
     /**
      * GET|HEAD /image/
+     * GET|HEAD /image/?prefix={prefix}&limit={limit}&marker={lastName}
      *
-     * Lists image metadata.
+     * Lists image metadata in name order. The metadata is written to the
+     * response as the pages of the bucket listing arrive. With a limit, the
+     * next page is requested with the name of the last image of the previous
+     * one.
      *
-     * @return the metadata.
+     * @param prefix only images whose name starts with it.
+     * @param limit the max. no. of images returned (max. 1000).
+     * @param marker the name of the last image of the previous page.
+     * @param response HTTP response containing the metadata.
      */
     @Secured({"ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody
-    List<FileMetadata> listMetadata() {
-        List<FileMetadata> list = imageService.list();
-        if (list == null) {
-            logger.info("Returning empty list of image metedata");
-            throw new CustomNotFoundException("No image metadata found or "
-                    + "you dont have permissions to access them.");
+    public void listMetadata(
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "marker", required = false) String marker,
+            HttpServletResponse response) {
+        if (limit != null && (limit <= 0 || limit > MAX_PAGE_SIZE)) {
+            throw new CustomBadRequestException("The limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+        try {
+            final long count = JSONOperations.writeArray(imageService.iteratePage(prefix, marker,
+                    limit == null ? 0 : limit), response);
+            logger.info("Returning list of " + count + " image metadata");
+        } catch (IOException ex) {
+            logger.error("Error writing list of image metadata to output stream");
+            throw new RuntimeException("IOError writing list to HTTP response", ex);
         }
-        logger.info("Returning list of image metadata");
-        return list;
     }
 
     /**
      * GET|HEAD /image/{id}
+     * GET|HEAD /image/{id}?format={format}
      * 
-     * Returns image payload as a decompressed BufferedImage. NOTE: When
-     * possible use getCompressed() instead, due to size
-     * limitations.
+     * Returns the image payload. The stored JPEG is streamed from S3 as is;
+     * the image is only decoded when another format (e.g. "png") is asked for.
+     * The validators are those of the version of the image read.
      *
      * @param id the image name.
-     * @return the image as a BufferedImage.
+     * @param format the image format, the stored JPEG if not given.
+     * @param ifNoneMatch entity tags of the client copies, if any.
+     * @param ifModifiedSince last modified tag.
+     * @param request HTTP request.
+     * @param response HTTP response containing the image.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
-    @RequestMapping(value = "{id:.+}", produces = MediaType.IMAGE_JPEG_VALUE, 
-            method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody
-    BufferedImage get(@PathVariable String id) {
+    @RequestMapping(value = "{id:.+}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void get(@PathVariable String id,
+            @RequestParam(value = "format", required = false) String format,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "If-Modified-Since", required = false) String ifModifiedSince,
+            HttpServletRequest request, HttpServletResponse response) {
         // this {id:.+} is a workaround for a spring bug that truncates path
         // variables containing a dot
-        BufferedImage img = imageService.getBufferedImage(id);
-        if (img == null) {
-            logger.info("Returning empty BufferedImage image");
-            throw new CustomNotFoundException("No image found or you dont "
-                    + "have permissions to access them.");
+        if (format == null || format.equalsIgnoreCase("jpeg") || format.equalsIgnoreCase("jpg")) {
+            try (StoredObject image = openImage(id, null, imageMaxAgeSeconds, ifNoneMatch,
+                    ifModifiedSince, request, response)) {
+                writeStored(image, request, response);
+                logger.info("Returning JPEG image " + id);
+            } catch (IOException ex) {
+                logger.error("Error writing image to output stream " + id);
+                throw new RuntimeException("IOError writing image to HTTP response", ex);
+            }
+            return;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new CustomBadRequestException("Unsupported image format " + format + ".");
+        }
+        try (StoredObject image = openImage(id, format.toLowerCase(), imageMaxAgeSeconds,
+                ifNoneMatch, ifModifiedSince, request, response)) {
+            // Headers must be set before the body is written.
+            response.setContentType(writers.next().getOriginatingProvider().getMIMETypes()[0]);
+            if (RequestMethod.HEAD.name().equals(request.getMethod())) {
+                // Answered from the metadata, the image is not decoded. The length
+                // of the encoded image is not known without encoding it.
+                logger.info("Returning headers of image " + id + " as " + format);
+                return;
+            }
+            imageService.writeAs(image, format, response.getOutputStream());
+            response.flushBuffer();
+            logger.info("Returning image " + id + " as " + format);
+        } catch (IOException ex) {
+            logger.error("Error writing image to output stream " + id);
+            throw new RuntimeException("IOError writing image to HTTP response", ex);
+        }
+    }
+
+    // Helper method to open an image for a response derived from it (the
+    // image itself if variant is null), conditionally on the client copy, and
+    // to set the validators of the version opened. HEAD requests only get the
+    // metadata. Throws CustomNotModifiedException if the client copy is current.
+    private StoredObject openImage(String id, String variant, long maxAgeSeconds,
+            String ifNoneMatch, String ifModifiedSince, HttpServletRequest request,
+            HttpServletResponse response) {
+        StoredObject image = imageService.open(id, HTTPOperations.toS3ETags(ifNoneMatch, variant),
+                modifiedSince(ifNoneMatch, ifModifiedSince),
+                RequestMethod.HEAD.name().equals(request.getMethod()));
+        if (image == null) {
+            logger.info("Failed to return image " + id);
+            throw new CustomNotFoundException("An image with this name does not exist "
+                    + "or you do not have permissions to access it.");
+        }
+        checkOpened(image, variant, maxAgeSeconds, response);
+        return image;
+    }
+
+    // Helper method to set the validators of the version of an object opened
+    // for a response derived from it (the object itself if variant is null),
+    // and the cache lifetime. Throws CustomNotModifiedException if the client
+    // copy is current (the object has no content then).
+    private void checkOpened(StoredObject object, String variant, long maxAgeSeconds,
+            HttpServletResponse response) {
+        FileMetadata meta = object.getMetadata();
+        String etag = meta.getEtag() == null ? null : meta.getEtag().replace("\"", "");
+        if (etag != null && variant != null) {
+            etag = etag + "-" + variant;
+        }
+        setValidators(HTTPOperations.toEntityTag(etag), meta.getLastModified(), maxAgeSeconds,
+                response);
+        if (object.isNotModified()) {
+            throw new CustomNotModifiedException("This image has not been modified");
+        }
+    }
+
+    // Helper method to read If-Modified-Since, which is ignored if it is
+    // invalid or if If-None-Match is given
+    private static DateTime modifiedSince(String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return null;
+        }
+        try {
+            return DateOperations.parseHTTPDate(ifModifiedSince);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Helper method to set the validators and the cache lifetime of a
+    // response, throws CustomNotModifiedException if the client copy is current
+    private void checkNotModified(String etag, DateTime lastModified, long maxAgeSeconds,
+            String ifNoneMatch, String ifModifiedSince, HttpServletResponse response) {
+        setValidators(etag, lastModified, maxAgeSeconds, response);
+        if (HTTPOperations.isNotModified(ifNoneMatch, ifModifiedSince, etag, lastModified)) {
+            throw new CustomNotModifiedException("This image has not been modified");
+        }
+    }
+
+    // Helper method to set the validators and the cache lifetime of a response
+    private static void setValidators(String etag, DateTime lastModified, long maxAgeSeconds,
+            HttpServletResponse response) {
+        // Validators are sent on 304 responses too.
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        response.setHeader("Last-modified", DateOperations.getHTTPDateSafely(lastModified));
+        response.setHeader("Cache-Control", maxAgeSeconds > 0
+                ? "public, max-age=" + maxAgeSeconds + ", must-revalidate, no-transform"
+                : "public, must-revalidate, no-transform");
+    }
+
+    // Helper method to stream an opened JPEG object into the response as is
+    private static void writeStored(StoredObject object, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        // Headers must be set before the body is written.
+        response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+        response.setHeader("Content-Length", Long.toString(object.getMetadata().getSize()));
+        if (RequestMethod.HEAD.name().equals(request.getMethod())) {
+            // Answered from the metadata, without fetching the object.
+            return;
+        }
+        object.writeTo(response.getOutputStream());
+        response.flushBuffer();
+    }
+
+    /**
+     * GET|HEAD /image/decode/statistics
+     * 
+     * Returns the memory budget, queue depth and wait times of the
+     * admission control of image decodes.
+     * @return the statistics.
+     */
+    @Secured({"ROLE_ADMIN"})
+    @RequestMapping(value = "/decode/statistics", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    DecodeStatistics getDecodeStatistics() {
+        logger.info("Returning statistics of the decode scheduler");
+        return imageService.getDecodeStatistics();
+    }
+
+    /**
+     * GET|HEAD /image/{id}/region?x={x}&y={y}&w={width}&h={height}&scale={scale}
+     * 
+     * Returns a region of an image as a JPEG, scaled by the given factor.
+     * Only the needed part of the image is decoded.
+     *
+     * @param id the image name.
+     * @param x the left of the region in image pixels.
+     * @param y the top of the region in image pixels.
+     * @param width the width of the region in image pixels.
+     * @param height the height of the region in image pixels.
+     * @param scale the scale of the result (0 < scale <= 1), 1 if not given.
+     * @param ifNoneMatch entity tags of the client copies, if any.
+     * @param ifModifiedSince last modified tag.
+     * @param request HTTP request.
+     * @param response HTTP response containing the region.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id:.+}/region", produces = MediaType.IMAGE_JPEG_VALUE,
+            method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getRegion(@PathVariable String id,
+            @RequestParam(value = "x", required = true) int x,
+            @RequestParam(value = "y", required = true) int y,
+            @RequestParam(value = "w", required = true) int width,
+            @RequestParam(value = "h", required = true) int height,
+            @RequestParam(value = "scale", required = false, defaultValue = "1") double scale,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "If-Modified-Since", required = false) String ifModifiedSince,
+            HttpServletRequest request, HttpServletResponse response) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0) {
+            throw new CustomBadRequestException("The region must be inside the image and not empty.");
+        }
+        if (!(scale > 0 && scale <= 1)) {
+            throw new CustomBadRequestException("The scale must be greater than 0 and at most 1.");
+        }
+        if ((double) width * height * scale * scale > MAX_REGION_PIXELS) {
+            throw new CustomBadRequestException("The scaled region must be at most " 
+                    + MAX_REGION_PIXELS + " pixels.");
+        }
+        try (StoredObject image = openImage(id,
+                "region-" + x + "_" + y + "_" + width + "_" + height + "_" + scale,
+                imageMaxAgeSeconds, ifNoneMatch, ifModifiedSince, request, response)) {
+            // Headers must be set before the body is written.
+            response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+            if (RequestMethod.HEAD.name().equals(request.getMethod())) {
+                return;
+            }
+            imageService.writeRegion(image, x, y, width, height, scale,
+                    response.getOutputStream());
+            response.flushBuffer();
+            logger.info("Returning region of image " + id);
+        } catch (IllegalArgumentException e) {
+            response.reset();
+            throw new CustomBadRequestException(e.getMessage());
+        } catch (IOException ex) {
+            logger.error("Error writing region to output stream of image " + id);
+            throw new RuntimeException("IOError writing region to HTTP response", ex);
+        }
+    }
+
+    /**
+     * GET|HEAD /image/{id}/renditions/{name}
+     * 
+     * Returns a downscaled JPEG rendition of an image ("thumbnail" or
+     * "preview"). Renditions carry a strong ETag and are revalidated with
+     * If-None-Match.
+     *
+     * @param id the image name.
+     * @param name the rendition name.
+     * @param ifNoneMatch entity tags of the client copies, if any.
+     * @param ifModifiedSince last modified tag.
+     * @param request HTTP request.
+     * @param response HTTP response containing the rendition.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id:.+}/renditions/{name}", produces = MediaType.IMAGE_JPEG_VALUE,
+            method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getRendition(@PathVariable String id, @PathVariable String name,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "If-Modified-Since", required = false) String ifModifiedSince,
+            HttpServletRequest request, HttpServletResponse response) {
+        ImageRenditions.Rendition rendition = imageService.getRendition(id, name);
+        if (rendition == null) {
+            logger.info("Failed to return " + name + " of image " + id);
+            throw new CustomNotFoundException("An image with this name does not exist, "
+                    + "or it has no such rendition.");
+        }
+        checkNotModified(HTTPOperations.toEntityTag(rendition.etag), rendition.lastModified,
+                renditionMaxAgeSeconds, ifNoneMatch, ifModifiedSince, response);
+        response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+        response.setHeader("Content-Length", Integer.toString(rendition.bytes.length));
+        if (RequestMethod.HEAD.name().equals(request.getMethod())) {
+            return;
+        }
+        try {
+            response.getOutputStream().write(rendition.bytes);
+            response.flushBuffer();
+            logger.info("Returning " + name + " of image " + id);
+        } catch (IOException ex) {
+            logger.error("Error writing rendition to output stream of image " + id);
+            throw new RuntimeException("IOError writing rendition to HTTP response", ex);
+        }
+    }
+
+    /**
+     * GET|HEAD /image/{id}/tiles
+     * 
+     * Returns the descriptor of the deep-zoom tile pyramid of an image. The
+     * pyramid is built in the background when the image is added.
+     *
+     * @param id the image name.
+     * @return the descriptor.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id:.+}/tiles", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    TilePyramid getTilePyramid(@PathVariable String id) {
+        TilePyramid pyramid = imageService.getTilePyramid(id);
+        if (pyramid == null) {
+            logger.info("Failed to return tile pyramid of image " + id);
+            throw new CustomNotFoundException("No tiles found for this image. They may "
+                    + "not have been built yet.");
+        }
+        logger.info("Returning tile pyramid of image " + id);
+        return pyramid;
+    }
+
+    /**
+     * GET|HEAD /image/{id}/tiles/{version}/{level}/{x}/{y}
+     * 
+     * Returns a JPEG tile of the pyramid of an image, streamed from S3. The
+     * version comes from the descriptor of the pyramid, and a new image gets
+     * a new version, so tiles can be kept by HTTP caches for a long time.
+     * The validators are those of the tile read.
+     *
+     * @param id the image name.
+     * @param version the version of the pyramid.
+     * @param level the zoom level.
+     * @param x the column of the tile.
+     * @param y the row of the tile.
+     * @param ifNoneMatch entity tags of the client copies, if any.
+     * @param ifModifiedSince last modified tag.
+     * @param request HTTP request.
+     * @param response HTTP response containing the tile.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id:.+}/tiles/{version}/{level}/{x}/{y}",
+            produces = MediaType.IMAGE_JPEG_VALUE, method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getTile(@PathVariable String id, @PathVariable String version,
+            @PathVariable int level, @PathVariable int x, @PathVariable int y,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "If-Modified-Since", required = false) String ifModifiedSince,
+            HttpServletRequest request, HttpServletResponse response) {
+        try (StoredObject tile = imageService.openTile(id, version, level, x, y,
+                HTTPOperations.toS3ETags(ifNoneMatch, null),
+                modifiedSince(ifNoneMatch, ifModifiedSince),
+                RequestMethod.HEAD.name().equals(request.getMethod()))) {
+            if (tile == null) {
+                logger.info("Failed to return tile " + level + "/" + x + "/" + y + " of image " + id);
+                throw new CustomNotFoundException("No such tile for this image.");
+            }
+            checkOpened(tile, null, tileMaxAgeSeconds, response);
+            writeStored(tile, request, response);
+        } catch (IOException ex) {
+            logger.error("Error writing tile to output stream of image " + id);
+            throw new RuntimeException("IOError writing tile to HTTP response", ex);
         }
-        logger.info("Returning BufferedImage image " + id);
-        return img;
     }
 
     /**
@@ -118,32 +466,38 @@ public class ImageController {
     /**
      * GET|HEAD /image/compressed/{id}
      * 
-     * Returns image payload as a compressed JPEG.
+     * Returns image payload as a compressed JPEG, streamed from S3.
      *
      * @param id the image name.
-     * @return the image as a JPEG.
+     * @param ifNoneMatch entity tags of the client copies, if any.
+     * @param ifModifiedSince last modified tag.
+     * @param request HTTP request.
+     * @param response HTTP response containing the image.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(value = "/compressed/{id:.+}", produces = MediaType.IMAGE_JPEG_VALUE, 
             method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody
-    byte[] getCompressed(@PathVariable String id) {
+    public void getCompressed(@PathVariable String id,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "If-Modified-Since", required = false) String ifModifiedSince,
+            HttpServletRequest request, HttpServletResponse response) {
         // this {id:.+} is a workaround for a spring bug that truncates path
         // variables containing a dot
-        byte[] image = imageService.getCompressedImage(id);
-        if (image == null) {
-            logger.info("Returning empty JPEG image");
-            throw new CustomNotFoundException("An image with this name does not exist "
-                    + "or you do not have permissions to access it.");
+        try (StoredObject image = openImage(id, null, imageMaxAgeSeconds, ifNoneMatch,
+                ifModifiedSince, request, response)) {
+            writeStored(image, request, response);
+            logger.info("Returning JPEG image " + id);
+        } catch (IOException ex) {
+            logger.error("Error writing image to output stream " + id);
+            throw new RuntimeException("IOError writing image to HTTP response", ex);
         }
-        logger.info("Returning JPEG image");
-        return image;
     }
 
     /**
      * PUT /image/
      * 
-     * Adds an image as a BufferedImage.
+     * Adds an image as a BufferedImage. Images in other formats than JPEG
+     * are decoded and stored as JPEG.
      * 
      * @param id the image name.
      * @param img the image.
@@ -169,6 +523,41 @@ public class ImageController {
         }
     }
 
+    /**
+     * PUT /image/{id} (Content-Type: image/jpeg)
+     * 
+     * Adds a JPEG image as uploaded, without decoding it. Its renditions and
+     * tile pyramid are built in the background.
+     * 
+     * @param id the image name.
+     * @param request HTTP request containing the image.
+     */
+    @Secured({"ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id:.+}", method = RequestMethod.PUT, 
+            consumes = MediaType.IMAGE_JPEG_VALUE)
+    public @ResponseBody
+    void ingest(@PathVariable String id, HttpServletRequest request) {
+        // this {id:.+} is a workaround for a spring bug that truncates path
+        // variables containing a dot
+        if (imageService.getImageMetadata(id) != null) {
+            logger.info("Cannot add image: exists " + id);
+            throw new CustomBadRequestException(
+                    "An image with this name exists already. Image names are unique.");
+        }
+        // Tries to save the image 
+        try {
+            imageService.ingest(id, request.getInputStream());
+            logger.info("Succesfully added JPEG image " + id);
+        } catch (IOException e) {
+            // The upload could not be read, or it is not a JPEG image.
+            logger.info("Error uploading image " + id, e);
+            throw new CustomBadRequestException("There was an error saving the image.");
+        } catch (RuntimeException e) {
+            logger.error("Error storing image " + id, e);
+            throw new CustomInternalServerErrorException("There was an error saving the image.");
+        }
+    }
+
     /**
      * DELETE /image/{id}
      * 
@@ -211,6 +600,15 @@ public class ImageController {
         return new BadRequestResponse(ex.getMessage());
     }
 
+    @ExceptionHandler(CustomServiceUnavailableException.class)
+    @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+    public @ResponseBody
+    ServiceUnavailableResponse handleServiceUnavailableException(
+            CustomServiceUnavailableException ex, HttpServletResponse response) {
+        response.setHeader("Retry-After", Integer.toString(ex.getRetryAfterSeconds()));
+        return new ServiceUnavailableResponse(ex.getMessage());
+    }
+
     @ExceptionHandler(RuntimeException.class)
     @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR)
     public @ResponseBody
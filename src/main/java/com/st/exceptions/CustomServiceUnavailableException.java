@@ -0,0 +1,33 @@
+package com.st.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This exception class returns a header with HTTP response type
+ * "503 Service Unavailable", with a customized JSON response (see
+ * ServiceUnavailableResponse). The client should retry after the
+ * given number of seconds (sent as Retry-After).
+ * Used in Controllers.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class CustomServiceUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 3398348496792635503L;
+
+    private final int retryAfterSeconds;
+
+    /**
+     * Constructor.
+     * @param message message.
+     * @param retryAfterSeconds seconds after which the request may be retried.
+     */
+    public CustomServiceUnavailableException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,15 @@
+package com.st.exceptions;
+
+/**
+ * This class defines the error response object returned as JSON by the CustomServiceUnavailableException
+ */
+public class ServiceUnavailableResponse {
+
+    public String error;
+    public String error_description;
+
+    public ServiceUnavailableResponse(String msg) {
+        this.error = "Service unavailable";
+        this.error_description = msg;
+    }
+}
@@ -0,0 +1,81 @@
+package com.st.model;
+
+/**
+ * Wraps the usage counters of a server side cache into JSON.
+ * Used by admins to size the caches.
+ */
+public class CacheStatistics implements ICacheStatistics {
+
+    long hits;
+    long misses;
+    long evictions;
+    long entries;
+    long usedBytes;
+    long maxBytes;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public CacheStatistics() {}
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public void setMisses(long misses) {
+        this.misses = misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public void setEvictions(long evictions) {
+        this.evictions = evictions;
+    }
+
+    @Override
+    public long getEntries() {
+        return entries;
+    }
+
+    @Override
+    public void setEntries(long entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public void setUsedBytes(long usedBytes) {
+        this.usedBytes = usedBytes;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+}
@@ -3,6 +3,8 @@ package com.st.model;
 import java.util.List;
 import org.hibernate.validator.constraints.NotBlank;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.joda.time.DateTime;
@@ -18,6 +20,10 @@ import org.springframework.data.annotation.LastModifiedDate;
  * linked to a features collection.
  */
 @Document(collection = "dataset")
+@CompoundIndexes({
+    @CompoundIndex(name = "grantedAccounts_1_enabled_1__id_1",
+            def = "{'grantedAccounts': 1, 'enabled': 1, '_id': 1}")
+})
 public class Dataset implements IDataset {
 
     @Id
@@ -49,6 +55,7 @@ public class Dataset implements IDataset {
     
     String comment;
 
+    @Indexed(unique = false)
     @NotBlank(message = "Created by must not be blank.")
     String created_by_account_id;
 
@@ -0,0 +1,93 @@
+package com.st.model;
+
+/**
+ * Wraps the state and counters of the image decode scheduler into JSON:
+ * the memory budget and how much of it is in use, the decodes waiting,
+ * admitted and rejected, and how long admitted decodes waited.
+ */
+public class DecodeStatistics implements IDecodeStatistics {
+
+    long budgetBytes;
+    long bytesInUse;
+    long queued;
+    long admitted;
+    long rejected;
+    long averageWaitMillis;
+    long maxWaitMillis;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public DecodeStatistics() {}
+
+    @Override
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    @Override
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    @Override
+    public long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    @Override
+    public void setBytesInUse(long bytesInUse) {
+        this.bytesInUse = bytesInUse;
+    }
+
+    @Override
+    public long getQueued() {
+        return queued;
+    }
+
+    @Override
+    public void setQueued(long queued) {
+        this.queued = queued;
+    }
+
+    @Override
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    @Override
+    public void setAdmitted(long admitted) {
+        this.admitted = admitted;
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+
+    @Override
+    public long getAverageWaitMillis() {
+        return averageWaitMillis;
+    }
+
+    @Override
+    public void setAverageWaitMillis(long averageWaitMillis) {
+        this.averageWaitMillis = averageWaitMillis;
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    @Override
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+}
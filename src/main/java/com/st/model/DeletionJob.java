@@ -0,0 +1,254 @@
+package com.st.model;
+
+import java.util.List;
+import org.joda.time.DateTime;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * This class maps the DeletionJob data model object into a MongoDB Document We
+ * use the @Document annotation of Spring Data for the mapping.
+ *
+ * A deletion job records the deletion of a dataset, or of the dependencies of
+ * an account, with all its files on Amazon S3. The pending datasets and files
+ * are removed from the job as they are deleted, so a job can be resumed by
+ * another worker if the one running it crashes (its lock then expires).
+ */
+@Document(collection = "deletionjob")
+public class DeletionJob implements IDeletionJob {
+
+    public static final String KIND_DATASET = "dataset";
+    public static final String KIND_ACCOUNT = "account";
+
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+
+    @Id
+    String id;
+
+    String kind;
+
+    @Indexed(unique = false)
+    String target_id;
+
+    boolean cascade;
+
+    @Indexed(unique = false)
+    String status;
+
+    String created_by_account_id;
+
+    boolean planned;
+
+    List<String> pending_datasets;
+
+    List<String> pending_files;
+
+    List<String> failed_files;
+
+    long datasets_deleted;
+
+    long files_deleted;
+
+    int attempts;
+
+    String error;
+
+    DateTime locked_until;
+
+    DateTime created_at;
+
+    DateTime last_modified;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public DeletionJob() {}
+
+    /**
+     * Constructor of a new pending job.
+     * @param kind KIND_DATASET or KIND_ACCOUNT.
+     * @param targetId the ID of the dataset or account.
+     * @param cascade for accounts, true to delete the granted datasets too.
+     */
+    public DeletionJob(String kind, String targetId, boolean cascade) {
+        this.kind = kind;
+        this.target_id = targetId;
+        this.cascade = cascade;
+        this.status = STATUS_PENDING;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getKind() {
+        return kind;
+    }
+
+    @Override
+    public void setKind(String kind) {
+        this.kind = kind;
+    }
+
+    @Override
+    public String getTarget_id() {
+        return target_id;
+    }
+
+    @Override
+    public void setTarget_id(String target_id) {
+        this.target_id = target_id;
+    }
+
+    @Override
+    public boolean isCascade() {
+        return cascade;
+    }
+
+    @Override
+    public void setCascade(boolean cascade) {
+        this.cascade = cascade;
+    }
+
+    @Override
+    public String getStatus() {
+        return status;
+    }
+
+    @Override
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    @Override
+    public String getCreated_by_account_id() {
+        return created_by_account_id;
+    }
+
+    @Override
+    public void setCreated_by_account_id(String created_by_account_id) {
+        this.created_by_account_id = created_by_account_id;
+    }
+
+    @Override
+    public boolean isPlanned() {
+        return planned;
+    }
+
+    @Override
+    public void setPlanned(boolean planned) {
+        this.planned = planned;
+    }
+
+    @Override
+    public List<String> getPending_datasets() {
+        return pending_datasets;
+    }
+
+    @Override
+    public void setPending_datasets(List<String> pending_datasets) {
+        this.pending_datasets = pending_datasets;
+    }
+
+    @Override
+    public List<String> getPending_files() {
+        return pending_files;
+    }
+
+    @Override
+    public void setPending_files(List<String> pending_files) {
+        this.pending_files = pending_files;
+    }
+
+    @Override
+    public List<String> getFailed_files() {
+        return failed_files;
+    }
+
+    @Override
+    public void setFailed_files(List<String> failed_files) {
+        this.failed_files = failed_files;
+    }
+
+    @Override
+    public long getDatasets_deleted() {
+        return datasets_deleted;
+    }
+
+    @Override
+    public void setDatasets_deleted(long datasets_deleted) {
+        this.datasets_deleted = datasets_deleted;
+    }
+
+    @Override
+    public long getFiles_deleted() {
+        return files_deleted;
+    }
+
+    @Override
+    public void setFiles_deleted(long files_deleted) {
+        this.files_deleted = files_deleted;
+    }
+
+    @Override
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    @Override
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    @Override
+    public DateTime getLocked_until() {
+        return locked_until;
+    }
+
+    @Override
+    public void setLocked_until(DateTime locked_until) {
+        this.locked_until = locked_until;
+    }
+
+    @Override
+    public DateTime getCreated_at() {
+        return created_at;
+    }
+
+    @Override
+    public void setCreated_at(DateTime created_at) {
+        this.created_at = created_at;
+    }
+
+    @Override
+    public DateTime getLast_modified() {
+        return last_modified;
+    }
+
+    @Override
+    public void setLast_modified(DateTime last_modified) {
+        this.last_modified = last_modified;
+    }
+}
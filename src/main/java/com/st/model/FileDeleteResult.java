@@ -0,0 +1,54 @@
+package com.st.model;
+
+/**
+ * Wraps the result of deleting one file of a batch delete into JSON.
+ * Lets callers retry only the files that could not be deleted.
+ */
+public class FileDeleteResult implements IFileDeleteResult {
+
+    String key;
+    boolean deleted;
+    String error;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public FileDeleteResult() {}
+
+    public FileDeleteResult(String key, boolean deleted, String error) {
+        this.key = key;
+        this.deleted = deleted;
+        this.error = error;
+    }
+
+    @Override
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    @Override
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    @Override
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    @Override
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public void setError(String error) {
+        this.error = error;
+    }
+}
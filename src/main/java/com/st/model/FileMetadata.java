@@ -15,6 +15,7 @@ public class FileMetadata implements IFileMetadata {
     DateTime lastModified;
     DateTime created;
     long size;       // No. of bytes in file
+    String etag;     // Entity tag of the file on Amazon S3
     
     /**
      * Default constructor is needed by Jackson, in
@@ -72,4 +73,14 @@ public class FileMetadata implements IFileMetadata {
         this.size = size;
     }
 
+    @Override
+    public String getEtag() {
+        return this.etag;
+    }
+
+    @Override
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
 }
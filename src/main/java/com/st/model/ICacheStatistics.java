@@ -0,0 +1,32 @@
+package com.st.model;
+
+/**
+ * This interface defines the CacheStatistics model. Applications that use the API must
+ * implement the same model.
+ */
+public interface ICacheStatistics {
+
+    public long getHits();
+
+    public void setHits(long hits);
+
+    public long getMisses();
+
+    public void setMisses(long misses);
+
+    public long getEvictions();
+
+    public void setEvictions(long evictions);
+
+    public long getEntries();
+
+    public void setEntries(long entries);
+
+    public long getUsedBytes();
+
+    public void setUsedBytes(long usedBytes);
+
+    public long getMaxBytes();
+
+    public void setMaxBytes(long maxBytes);
+}
@@ -0,0 +1,36 @@
+package com.st.model;
+
+/**
+ * This interface defines the DecodeStatistics model. Applications that use the API must
+ * implement the same model.
+ */
+public interface IDecodeStatistics {
+
+    public long getBudgetBytes();
+
+    public void setBudgetBytes(long budgetBytes);
+
+    public long getBytesInUse();
+
+    public void setBytesInUse(long bytesInUse);
+
+    public long getQueued();
+
+    public void setQueued(long queued);
+
+    public long getAdmitted();
+
+    public void setAdmitted(long admitted);
+
+    public long getRejected();
+
+    public void setRejected(long rejected);
+
+    public long getAverageWaitMillis();
+
+    public void setAverageWaitMillis(long averageWaitMillis);
+
+    public long getMaxWaitMillis();
+
+    public void setMaxWaitMillis(long maxWaitMillis);
+}
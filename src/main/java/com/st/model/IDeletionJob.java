@@ -0,0 +1,79 @@
+package com.st.model;
+
+import java.util.List;
+import org.joda.time.DateTime;
+
+/**
+ * This interface defines the DeletionJob model. Applications that use the API must
+ * implement the same model.
+ */
+public interface IDeletionJob {
+
+    public String getId();
+
+    public void setId(String id);
+
+    public String getKind();
+
+    public void setKind(String kind);
+
+    public String getTarget_id();
+
+    public void setTarget_id(String target_id);
+
+    public boolean isCascade();
+
+    public void setCascade(boolean cascade);
+
+    public String getStatus();
+
+    public void setStatus(String status);
+
+    public String getCreated_by_account_id();
+
+    public void setCreated_by_account_id(String created_by_account_id);
+
+    public boolean isPlanned();
+
+    public void setPlanned(boolean planned);
+
+    public List<String> getPending_datasets();
+
+    public void setPending_datasets(List<String> pending_datasets);
+
+    public List<String> getPending_files();
+
+    public void setPending_files(List<String> pending_files);
+
+    public List<String> getFailed_files();
+
+    public void setFailed_files(List<String> failed_files);
+
+    public long getDatasets_deleted();
+
+    public void setDatasets_deleted(long datasets_deleted);
+
+    public long getFiles_deleted();
+
+    public void setFiles_deleted(long files_deleted);
+
+    public int getAttempts();
+
+    public void setAttempts(int attempts);
+
+    public String getError();
+
+    public void setError(String error);
+
+    public DateTime getLocked_until();
+
+    public void setLocked_until(DateTime locked_until);
+
+    public DateTime getCreated_at();
+
+    public void setCreated_at(DateTime created_at);
+
+    public DateTime getLast_modified();
+
+    public void setLast_modified(DateTime last_modified);
+}
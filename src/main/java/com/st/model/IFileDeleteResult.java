@@ -0,0 +1,20 @@
+package com.st.model;
+
+/**
+ * This interface defines the FileDeleteResult model. Applications that use the API must
+ * implement the same model.
+ */
+public interface IFileDeleteResult {
+
+    public String getKey();
+
+    public void setKey(String key);
+
+    public boolean isDeleted();
+
+    public void setDeleted(boolean deleted);
+
+    public String getError();
+
+    public void setError(String error);
+}
@@ -28,4 +28,8 @@ public interface IFileMetadata {
 
     public void setSize(long size);
 
+    public String getEtag();
+
+    public void setEtag(String etag);
+
 }
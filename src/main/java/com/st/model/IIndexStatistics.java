@@ -0,0 +1,34 @@
+package com.st.model;
+
+import org.joda.time.DateTime;
+
+/**
+ * This interface defines the IndexStatistics model. Applications that use the API must
+ * implement the same model.
+ */
+public interface IIndexStatistics {
+
+    public long getAccounts();
+
+    public void setAccounts(long accounts);
+
+    public long getDatasets();
+
+    public void setDatasets(long datasets);
+
+    public long getEntries();
+
+    public void setEntries(long entries);
+
+    public long getMemoryBytes();
+
+    public void setMemoryBytes(long memoryBytes);
+
+    public long getRebuildMillis();
+
+    public void setRebuildMillis(long rebuildMillis);
+
+    public DateTime getLastRebuild();
+
+    public void setLastRebuild(DateTime lastRebuild);
+}
@@ -0,0 +1,36 @@
+package com.st.model;
+
+/**
+ * This interface defines the TilePyramid model. Applications that use the API must
+ * implement the same model.
+ */
+public interface ITilePyramid {
+
+    public String getImage();
+
+    public void setImage(String image);
+
+    public int getWidth();
+
+    public void setWidth(int width);
+
+    public int getHeight();
+
+    public void setHeight(int height);
+
+    public int getTileSize();
+
+    public void setTileSize(int tileSize);
+
+    public int getMaxLevel();
+
+    public void setMaxLevel(int maxLevel);
+
+    public String getFormat();
+
+    public void setFormat(String format);
+
+    public String getVersion();
+
+    public void setVersion(String version);
+}
@@ -0,0 +1,83 @@
+package com.st.model;
+
+import org.joda.time.DateTime;
+
+/**
+ * Wraps the size, approximate memory use and rebuild time of a server side
+ * index into JSON. Used by admins to size the indexes.
+ */
+public class IndexStatistics implements IIndexStatistics {
+
+    long accounts;
+    long datasets;
+    long entries;
+    long memoryBytes;
+    long rebuildMillis;
+    DateTime lastRebuild;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public IndexStatistics() {}
+
+    @Override
+    public long getAccounts() {
+        return accounts;
+    }
+
+    @Override
+    public void setAccounts(long accounts) {
+        this.accounts = accounts;
+    }
+
+    @Override
+    public long getDatasets() {
+        return datasets;
+    }
+
+    @Override
+    public void setDatasets(long datasets) {
+        this.datasets = datasets;
+    }
+
+    @Override
+    public long getEntries() {
+        return entries;
+    }
+
+    @Override
+    public void setEntries(long entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    @Override
+    public void setMemoryBytes(long memoryBytes) {
+        this.memoryBytes = memoryBytes;
+    }
+
+    @Override
+    public long getRebuildMillis() {
+        return rebuildMillis;
+    }
+
+    @Override
+    public void setRebuildMillis(long rebuildMillis) {
+        this.rebuildMillis = rebuildMillis;
+    }
+
+    @Override
+    public DateTime getLastRebuild() {
+        return lastRebuild;
+    }
+
+    @Override
+    public void setLastRebuild(DateTime lastRebuild) {
+        this.lastRebuild = lastRebuild;
+    }
+}
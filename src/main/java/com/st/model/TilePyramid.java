@@ -0,0 +1,117 @@
+package com.st.model;
+
+/**
+ * Describes the deep-zoom tile pyramid of an image. Level maxLevel has the
+ * size of the image, and each level below has half the width and height of
+ * the one above, down to a single pixel at level 0. Tiles are tileSize
+ * pixels square (smaller at the right and bottom edges) and numbered from
+ * the top left corner.
+ *
+ * Tiles are stored under the version of the pyramid (the ETag of the image it
+ * was built from), so that the URL of a tile, /image/{image}/tiles/{version}/
+ * {level}/{x}/{y}, never names other content and can be cached for a long
+ * time. Clients build the tile URLs from this descriptor.
+ */
+public class TilePyramid implements ITilePyramid {
+
+    String image;
+    int width;
+    int height;
+    int tileSize;
+    int maxLevel;
+    String format;
+
+    String version;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public TilePyramid() {}
+
+    public TilePyramid(String image, String version, int width, int height, int tileSize,
+            String format) {
+        this.image = image;
+        this.version = version;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.format = format;
+        int levels = 0;
+        while ((1L << levels) < Math.max(width, height)) {
+            levels++;
+        }
+        this.maxLevel = levels;
+    }
+
+    @Override
+    public String getImage() {
+        return image;
+    }
+
+    @Override
+    public void setImage(String image) {
+        this.image = image;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    @Override
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    @Override
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    @Override
+    public void setMaxLevel(int maxLevel) {
+        this.maxLevel = maxLevel;
+    }
+
+    @Override
+    public String getFormat() {
+        return format;
+    }
+
+    @Override
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    @Override
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+}
@@ -6,6 +6,7 @@ import org.springframework.stereotype.Service;
 
 import com.st.model.Account;
 import com.st.model.AccountId;
+import com.st.util.CursorOperations.CursorIterator;
 
 /**
  * Interface for the account service.
@@ -40,6 +41,13 @@ public interface AccountService {
      */
     public List<Account> list();
 
+    /**
+     * Iterates the accounts from a database cursor.
+     * @param onlyEnabled if true only enabled accounts are returned.
+     * @return the iterator, to be closed by the caller.
+     */
+    public CursorIterator<Account> iterate(boolean onlyEnabled);
+
     /**
      * Finds all accounts ids.
      * @return the accounts ids.
@@ -3,7 +3,9 @@ package com.st.service;
 import java.util.List;
 import org.springframework.stereotype.Service;
 import com.st.model.Dataset;
+import com.st.model.IndexStatistics;
 import com.st.model.MongoUserDetails;
+import com.st.util.CursorOperations.CursorIterator;
 
 /**
  * Interface for the dataset service.
@@ -45,6 +47,20 @@ public interface DatasetService {
      */
     public List<Dataset> list();
 
+    /**
+     * Iterates a page of datasets in ID order from a database cursor, so that
+     * the page is not loaded into a list.
+     * @param accountId the account whose datasets are listed, or null for all
+     * the datasets the current user can access.
+     * @param onlyEnabled if true only enabled datasets are returned.
+     * @param after the ID of the last dataset of the previous page, or null.
+     * @param limit the max. no. of datasets returned, 0 for no limit.
+     * @param fields the fields to return, all if none are given.
+     * @return the iterator, to be closed by the caller, or null if not permitted.
+     */
+    public CursorIterator<Dataset> iteratePage(String accountId, boolean onlyEnabled, String after,
+            int limit, String... fields);
+
     /**
      * Updates a dataset.
      * @param ds the dataset.
@@ -53,17 +69,20 @@ public interface DatasetService {
     public boolean update(Dataset ds);
 
     /**
-     * Deletes a dataset.
-     * @param id the ID.
-     * @return true if it was deleted
+     * Sets all dataset created by an account to having an empty creator field.
+     * @param accountId the account ID.
+     * @return the number of datasets matched and modified.
      */
-    public boolean delete(String id);
+    public int clearAccountCreator(String accountId);
 
     /**
-     * Sets all dataset created by an account to having an empty creator field.
+     * Sets all datasets created by an account to having an empty creator
+     * field. There is no role check, it is meant for deletion jobs, whose
+     * permissions are checked when they are submitted.
      * @param accountId the account ID.
+     * @return the number of datasets matched and modified.
      */
-    public void clearAccountCreator(String accountId);
+    public int clearCreator(String accountId);
 
     /**
      * Returns true if a user has access to a specific dataset.
@@ -87,4 +106,10 @@ public interface DatasetService {
      * @return true if the dataset exists
      */
     public boolean datasetNameIdExist(String name, String id);
+
+    /**
+     * Returns the size, memory use and rebuild time of the grants index.
+     * @return the statistics.
+     */
+    public IndexStatistics getGrantStatistics();
 }
@@ -0,0 +1,39 @@
+package com.st.service;
+
+import org.springframework.stereotype.Service;
+
+import com.st.model.DeletionJob;
+
+/**
+ * Interface for the deletion job service.
+ */
+@Service
+public interface DeletionJobService {
+
+    /**
+     * Finds a deletion job, e.g. to follow its progress.
+     * @param id the job ID.
+     * @return the job or null if not found.
+     */
+    public DeletionJob find(String id);
+
+    /**
+     * Records a job deleting a dataset with its grants and files. The job
+     * runs in the background.
+     * @param datasetId the dataset ID.
+     * @return the job, or null if the dataset does not exist or the current
+     * user is not allowed to delete it.
+     */
+    public DeletionJob deleteDataset(String datasetId);
+
+    /**
+     * Records a job deleting an account and its grants, and either deleting
+     * its granted datasets (cascade) or clearing it as their creator. The job
+     * runs in the background.
+     * @param accountId the account ID.
+     * @param cascade true to delete the granted datasets.
+     * @return the job, or null if the account does not exist or the current
+     * user is not allowed to delete it.
+     */
+    public DeletionJob deleteAccount(String accountId, boolean cascade);
+}
@@ -1,7 +1,12 @@
 package com.st.service;
 
+import com.st.model.CacheStatistics;
+import com.st.model.FileDeleteResult;
 import com.st.model.FileMetadata;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 
 /**
  * Interface for the features service.
@@ -24,6 +29,17 @@ public interface FileService {
      * @return true if file was updated or added correctly
      */
     public boolean addUpdate(String filename, String id, byte[] gzipfile);
+
+    /**
+     * Adds or updates a file by streaming it to storage, so that the file
+     * is never held in memory as a whole.
+     * @param filename the name of the file
+     * @param id the dataset ID.
+     * @param gzipfile the gzipped file. The stream is not closed.
+     * @param length the number of bytes of the file.
+     * @return true if file was updated or added correctly
+     */
+    public boolean addUpdate(String filename, String id, InputStream gzipfile, long length);
     
     /**
      * Finds a file.
@@ -32,6 +48,31 @@ public interface FileService {
      * @return the file gzipped, as an input stream or null.
      */
     public InputStream find(String filename, String id);
+
+    /**
+     * Streams a file straight from storage into an output stream, without
+     * holding it in memory. The output stream is not closed.
+     * @param filename the name of the file
+     * @param id the dataset ID.
+     * @param out the stream to write the gzipped file to.
+     * @return the number of bytes written, or -1 if the file could not be retrieved.
+     * @throws IOException if writing to the output stream fails.
+     */
+    public long stream(String filename, String id, OutputStream out) throws IOException;
+
+    /**
+     * Streams a byte range of a file straight from storage into an output
+     * stream. Only the requested bytes are fetched. The output stream is not closed.
+     * @param filename the name of the file
+     * @param id the dataset ID.
+     * @param start the first byte to write.
+     * @param end the last byte to write (inclusive).
+     * @param out the stream to write the range to.
+     * @return the number of bytes written, or -1 if the file could not be retrieved.
+     * @throws IOException if writing to the output stream fails.
+     */
+    public long stream(String filename, String id, long start, long end, 
+            OutputStream out) throws IOException;
     
     /**
      * Deletes a file.
@@ -40,4 +81,37 @@ public interface FileService {
      * @return 
      */
     public boolean delete(String filename, String id);
+
+    /**
+     * Deletes all the files of a dataset (every key under its prefix) with
+     * multi-object deletes of up to 1000 keys each.
+     * @param id the dataset ID.
+     * @return the result of each file, or null if not permitted.
+     */
+    public List<FileDeleteResult> deleteAll(String id);
+
+    /**
+     * Lists the storage keys ("datasetId/filename") of all the files of a
+     * dataset. There is no role check, it is meant for deletion jobs, whose
+     * permissions are checked when they are submitted.
+     * @param id the dataset ID.
+     * @return the keys.
+     */
+    public List<String> listKeys(String id);
+
+    /**
+     * Deletes files by their storage keys ("datasetId/filename") with
+     * multi-object deletes of up to 1000 keys each. There is no role check,
+     * it is meant for deletion jobs, whose permissions are checked when
+     * they are submitted.
+     * @param keys the storage keys.
+     * @return the result of each key, in the same order.
+     */
+    public List<FileDeleteResult> deleteKeys(List<String> keys);
+
+    /**
+     * Returns the usage counters of the local cache of files.
+     * @return the statistics.
+     */
+    public CacheStatistics getCacheStatistics();
 }
@@ -1,8 +1,18 @@
 package com.st.service;
 
+import com.st.component.ImageRenditions;
+import com.st.exceptions.CustomServiceUnavailableException;
+import com.st.model.DecodeStatistics;
 import com.st.model.FileMetadata;
+import com.st.model.TilePyramid;
+import com.st.util.S3Operations.StoredObject;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.List;
+import org.joda.time.DateTime;
 
 /**
  * Interface for the image service.
@@ -15,6 +25,23 @@ public interface ImageService {
      */
     public List<FileMetadata> list();
 
+    /**
+     * Iterates all image metadata, fetching the listing from the storage
+     * one page at a time.
+     * @return the iterator.
+     */
+    public Iterator<FileMetadata> iterate();
+
+    /**
+     * Iterates a page of image metadata in name order, fetching the listing
+     * from the storage as it is consumed.
+     * @param prefix only images whose name starts with it, all if null.
+     * @param marker the name of the last image of the previous page, or null.
+     * @param limit the max. no. of images, 0 for no limit.
+     * @return the iterator.
+     */
+    public Iterator<FileMetadata> iteratePage(String prefix, String marker, int limit);
+
     /**
      * Returns image metadata for an image.
      * @param filename the image name.
@@ -23,32 +50,103 @@ public interface ImageService {
     public FileMetadata getImageMetadata(String filename);
 
     /**
-     * Returns an image as a BufferedImage.
+     * Opens an image as stored (JPEG), unless the client copy is current,
+     * so that responses are made from, and validated by, the same version.
+     * @param filename the image name.
+     * @param etags the S3 ETags of the client copies, empty if none.
+     * @param modifiedSince the date of the client copy, or null.
+     * @param metadataOnly true to get the metadata only (HEAD requests).
+     * @return the image, to be closed by the caller, or null if it does not exist.
+     */
+    public StoredObject open(String filename, List<String> etags, DateTime modifiedSince,
+            boolean metadataOnly);
+
+    /**
+     * Decodes an opened image and writes it in another format. The decode
+     * must be admitted by the decode scheduler first.
+     * @param image the image, opened with its content.
+     * @param format the format, e.g. "png".
+     * @param out the stream to write the image to.
+     * @throws IOException if the image cannot be decoded or written.
+     * @throws IllegalArgumentException if the format is not supported.
+     * @throws CustomServiceUnavailableException if the decode is not admitted.
+     */
+    public void writeAs(StoredObject image, String format, OutputStream out) throws IOException;
+
+    /**
+     * Writes a region of an image, scaled down, as JPEG. Only the scanlines
+     * of the region are decoded, subsampled, so memory use is bounded by the
+     * size of the result rather than the size of the image. The decode must
+     * be admitted by the decode scheduler first.
+     * @param image the image, opened with its content.
+     * @param x the left of the region in image pixels.
+     * @param y the top of the region in image pixels.
+     * @param width the width of the region in image pixels.
+     * @param height the height of the region in image pixels.
+     * @param scale the scale of the result, greater than 0 and at most 1.
+     * @param out the stream to write the region (clipped to the image) to.
+     * @throws IOException if the image cannot be decoded or written.
+     * @throws IllegalArgumentException if the region is outside of the image.
+     * @throws CustomServiceUnavailableException if the decode is not admitted.
+     */
+    public void writeRegion(StoredObject image, int x, int y, int width, int height,
+            double scale, OutputStream out) throws IOException;
+
+    /**
+     * Returns the memory budget, queue depth and wait times of the decode scheduler.
+     * @return the statistics.
+     */
+    public DecodeStatistics getDecodeStatistics();
+
+    /**
+     * Returns a downscaled rendition of an image (e.g. "thumbnail" or
+     * "preview"), generating it if missing.
+     * @param filename the image name.
+     * @param name the rendition name.
+     * @return the rendition, or null if the image or the rendition name does not exist.
+     */
+    public ImageRenditions.Rendition getRendition(String filename, String name);
+
+    /**
+     * Returns the descriptor of the tile pyramid of an image.
      * @param filename the image name.
-     * @return the image.
+     * @return the descriptor, or null if the pyramid has not been built.
      */
-    public BufferedImage getBufferedImage(String filename);
+    public TilePyramid getTilePyramid(String filename);
 
     /**
-     * Returns an image a JPEG stream.
+     * Opens a JPEG tile of the pyramid of an image, unless the client copy
+     * is current. The tile is streamed from storage as is.
      * @param filename the image name.
-     * @return the image.
+     * @param version the version of the pyramid, from its descriptor.
+     * @param level the zoom level.
+     * @param x the column of the tile.
+     * @param y the row of the tile.
+     * @param etags the S3 ETags of the client copies, empty if none.
+     * @param modifiedSince the date of the client copy, or null.
+     * @param metadataOnly true to get the metadata only (HEAD requests).
+     * @return the tile, to be closed by the caller, or null if it does not exist.
      */
-    public byte[] getCompressedImage(String filename);
+    public StoredObject openTile(String filename, String version, int level, int x, int y,
+            List<String> etags, DateTime modifiedSince, boolean metadataOnly);
 
     /**
-     * Adds a JPEG image via a BufferedImage.
+     * Adds a JPEG image via a BufferedImage. Its memory is admitted by the
+     * decode scheduler when it is decoded, not here.
      * @param filename the image name.
      * @param img the image.
      */
     public void add(String filename, BufferedImage img);
 
     /**
-     * Adds an image as a JPEG.
+     * Adds a JPEG image from a stream, storing its bytes as they are. The
+     * image is not decoded: only its header is checked. The stream is not
+     * closed.
      * @param filename the image name.
-     * @param img the JPEG image, stored in BASE64.
+     * @param in the stream of the JPEG image.
+     * @throws IOException if the stream cannot be read or is not a JPEG image.
      */
-    public void addCompressed(String filename, byte[] img);
+    public void ingest(String filename, InputStream in) throws IOException;
 
     /**
      * Deletes an image.
@@ -13,6 +13,8 @@ import com.st.model.AccountId;
 import com.st.model.DatasetInfo;
 import com.st.model.MongoUserDetails;
 import com.st.service.AccountService;
+import com.st.util.CursorOperations;
+import com.st.util.CursorOperations.CursorIterator;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -94,6 +96,22 @@ public class AccountServiceImpl implements AccountService {
         return accounts;
     }
     
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own.
+    // ROLE_USER:  own.
+    @Override
+    public CursorIterator<Account> iterate(boolean onlyEnabled) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        Query query = new Query();
+        if (!currentUser.isAdmin()) {
+            query.addCriteria(Criteria.where("id").is(currentUser.getId()));
+        }
+        if (onlyEnabled) {
+            query.addCriteria(Criteria.where("enabled").is(true));
+        }
+        return CursorOperations.find(mongoTemplateUserDB, query, Account.class);
+    }
+    
     // ROLE_ADMIN: all.
     // ROLE_CM:    all.
     // ROLE_USER:  own.
@@ -130,6 +148,7 @@ public class AccountServiceImpl implements AccountService {
             return null;
         }
         mongoTemplateUserDB.insert(account);
+        customUserDetailsService.invalidateCache();
         logger.info("Added account " + account.getId() + " to MongoDB.");
         return account;
     }
@@ -142,6 +161,7 @@ public class AccountServiceImpl implements AccountService {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || currentUser.getId().equals(account.getId())) {
             mongoTemplateUserDB.save(account);
+            customUserDetailsService.invalidateCache();
             logger.info("Updated account " + account.getId() + " to MongoDB.");
             return true;
         }
@@ -157,6 +177,7 @@ public class AccountServiceImpl implements AccountService {
         Account acc = find(id);
         if (currentUser.isAdmin() && acc != null) {
             mongoTemplateUserDB.remove(acc);
+            customUserDetailsService.invalidateCache();
             logger.info("Deleted account " + id + " from MongoDB.");
             return true;
         }
@@ -1,19 +1,24 @@
 package com.st.serviceImpl;
 
+import com.st.component.GrantIndex;
 import com.st.model.Account;
 import com.st.model.Dataset;
 import java.util.List;
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import com.st.model.DatasetInfo;
 import com.st.model.MongoUserDetails;
 import com.st.service.DatasetInfoService;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * This class implements the store/retrieve logic to MongoDB for the data model
@@ -34,6 +39,9 @@ public class DatasetInfoServiceImpl implements DatasetInfoService {
     @Autowired
     MongoOperations mongoTemplateAnalysisDB;
 
+    @Autowired
+    GrantIndex grantIndex;
+
     // ROLE_ADMIN: all.
     // ROLE_CM:    own.
     // ROLE_USER:  own.
@@ -95,6 +103,8 @@ public class DatasetInfoServiceImpl implements DatasetInfoService {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
             mongoTemplateUserDB.insert(dsi);
+            updateGrantedAccounts(dsi.getAccount_id(), dsi.getDataset_id(), true);
+            grantIndex.grant(dsi.getAccount_id(), dsi.getDataset_id());
             logger.info("Added dataset info " + dsi.getId() + " to MongoDB.");    
             return dsi;
         } 
@@ -108,7 +118,15 @@ public class DatasetInfoServiceImpl implements DatasetInfoService {
     public void update(DatasetInfo dsi) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
+            DatasetInfo previous = dsi.getId() == null ? null : mongoTemplateUserDB.findOne(
+                    new Query(Criteria.where("id").is(dsi.getId())), DatasetInfo.class);
             mongoTemplateUserDB.save(dsi);
+            if (previous != null) {
+                updateGrantedAccounts(previous.getAccount_id(), previous.getDataset_id(), false);
+                grantIndex.revoke(previous.getAccount_id(), previous.getDataset_id());
+            }
+            updateGrantedAccounts(dsi.getAccount_id(), dsi.getDataset_id(), true);
+            grantIndex.grant(dsi.getAccount_id(), dsi.getDataset_id());
             logger.info("Updated dataset info " + dsi.getId() + " to MongoDB.");
         }
     }
@@ -123,29 +141,49 @@ public class DatasetInfoServiceImpl implements DatasetInfoService {
             return;
         }
         logger.info("Updating granted datasets for account " + accountId);
-        // Remove existing datasets.
-        deleteForAccount(accountId);
-        // Add all the datasets again
-        Date d = new Date();
-        for (String datasetId : datasetsIds) {
-            Dataset dataset = mongoTemplateAnalysisDB.findOne(
-                    new Query(Criteria.where("id").is(datasetId)), Dataset.class);
-            if (dataset != null) {
-                add(new DatasetInfo(accountId, datasetId));
-                List<String> granted_accounts = dataset.getGrantedAccounts();
-                if (granted_accounts == null) {
-                    granted_accounts = new ArrayList<>();
+        // Only the difference with the current grants is written
+        Set<String> current = grantedIds("account_id", accountId, "dataset_id");
+        Set<String> added = new HashSet<>(datasetsIds == null
+                ? Collections.<String>emptyList() : datasetsIds);
+        Set<String> removed = new HashSet<>(current);
+        removed.removeAll(added);
+        added.removeAll(current);
+        if (!added.isEmpty()) {
+            // Only existing datasets can be granted
+            Query query = new Query(Criteria.where("id").in(added));
+            query.fields().include("id");
+            Set<String> existing = new HashSet<>();
+            for (Dataset dataset : mongoTemplateAnalysisDB.find(query, Dataset.class)) {
+                existing.add(dataset.getId());
+            }
+            for (String datasetId : added) {
+                if (!existing.contains(datasetId)) {
+                    logger.error("Could not update dataset " + datasetId + " probably permission problem.");
                 }
-                if (!granted_accounts.contains(accountId)) {
-                    logger.info("Granting account " + accountId + " to dataset " + dataset.getId());
-                    granted_accounts.add(accountId);
-                    dataset.setGrantedAccounts(granted_accounts);
-                    mongoTemplateAnalysisDB.save(dataset);
+            }
+            if (!existing.isEmpty()) {
+                List<DatasetInfo> dsis = new ArrayList<>(existing.size());
+                for (String datasetId : existing) {
+                    dsis.add(new DatasetInfo(accountId, datasetId));
                 }
-            } else {
-                logger.error("Could not update dataset " + datasetId + " probably permission problem.");
+                mongoTemplateUserDB.insert(dsis, DatasetInfo.class);
+                // updateMulti bypasses the auditing, so last_modified is set here.
+                mongoTemplateAnalysisDB.updateMulti(new Query(Criteria.where("id").in(existing)),
+                        new Update().addToSet("grantedAccounts", accountId)
+                        .set("last_modified", new DateTime()), Dataset.class);
+                grantIndex.grantDatasets(accountId, existing);
+                logger.info("Granted account " + accountId + " to datasets " + existing);
             }
         }
+        if (!removed.isEmpty()) {
+            mongoTemplateUserDB.remove(new Query(Criteria.where("account_id").is(accountId)
+                    .and("dataset_id").in(removed)), DatasetInfo.class);
+            mongoTemplateAnalysisDB.updateMulti(new Query(Criteria.where("id").in(removed)),
+                    new Update().pull("grantedAccounts", accountId)
+                    .set("last_modified", new DateTime()), Dataset.class);
+            grantIndex.revokeDatasets(accountId, removed);
+            logger.info("Revoked account " + accountId + " from datasets " + removed);
+        }
     }
     
     // ROLE_ADMIN: ok.
@@ -158,30 +196,70 @@ public class DatasetInfoServiceImpl implements DatasetInfoService {
             return;
         }
         logger.info("Updating granted accounts for dataset " + datasetId);
-        // Remove existing accounts.
-        deleteForDataset(datasetId);
-        // Add all the accounts again and the update the Accounts objects with
-        // the granted dataset Id
-        Date d = new Date();
-        for (String accountId : accountsIds) {
-            Account account = mongoTemplateUserDB.findOne(
-                    new Query(Criteria.where("id").is(accountId)), Account.class);
-            if (account != null) {
-                add(new DatasetInfo(accountId, datasetId));
-                List<String> granted_datasets = account.getGranted_datasets();
-                if (granted_datasets == null) {
-                    granted_datasets = new ArrayList<>();
+        // Only the difference with the current grants is written
+        Set<String> current = grantedIds("dataset_id", datasetId, "account_id");
+        Set<String> added = new HashSet<>(accountsIds == null
+                ? Collections.<String>emptyList() : accountsIds);
+        Set<String> removed = new HashSet<>(current);
+        removed.removeAll(added);
+        added.removeAll(current);
+        if (!added.isEmpty()) {
+            // Only existing accounts can be granted
+            Query query = new Query(Criteria.where("id").in(added));
+            query.fields().include("id");
+            Set<String> existing = new HashSet<>();
+            for (Account account : mongoTemplateUserDB.find(query, Account.class)) {
+                existing.add(account.getId());
+            }
+            for (String accountId : added) {
+                if (!existing.contains(accountId)) {
+                    logger.error("Could not update account " + accountId + " probably permission problem.");
                 }
-                if (!granted_datasets.contains(datasetId)) {
-                    logger.info("Granting dataset " + datasetId + " to account " + accountId);
-                    granted_datasets.add(datasetId);
-                    account.setGranted_datasets(granted_datasets);
-                    mongoTemplateUserDB.save(account);
+            }
+            if (!existing.isEmpty()) {
+                List<DatasetInfo> dsis = new ArrayList<>(existing.size());
+                for (String accountId : existing) {
+                    dsis.add(new DatasetInfo(accountId, datasetId));
                 }
-            } else {
-                logger.error("Could not update account " + accountId + " probably permission problem.");
+                mongoTemplateUserDB.insert(dsis, DatasetInfo.class);
+                mongoTemplateUserDB.updateMulti(new Query(Criteria.where("id").in(existing)),
+                        new Update().addToSet("granted_datasets", datasetId), Account.class);
+                grantIndex.grantAccounts(datasetId, existing);
+                logger.info("Granted dataset " + datasetId + " to accounts " + existing);
             }
         }
+        if (!removed.isEmpty()) {
+            mongoTemplateUserDB.remove(new Query(Criteria.where("dataset_id").is(datasetId)
+                    .and("account_id").in(removed)), DatasetInfo.class);
+            mongoTemplateUserDB.updateMulti(new Query(Criteria.where("id").in(removed)),
+                    new Update().pull("granted_datasets", datasetId), Account.class);
+            grantIndex.revokeAccounts(datasetId, removed);
+            logger.info("Revoked dataset " + datasetId + " from accounts " + removed);
+        }
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            customUserDetailsService.invalidateCache();
+        }
+    }
+
+    // Helper method to read the ids on the other side of the grants of an
+    // account or dataset, with a single projected query
+    private Set<String> grantedIds(String field, String id, String otherField) {
+        Query query = new Query(Criteria.where(field).is(id));
+        query.fields().include(otherField);
+        Set<String> ids = new HashSet<>();
+        for (DatasetInfo dsi : mongoTemplateUserDB.find(query, DatasetInfo.class)) {
+            ids.add("account_id".equals(otherField) ? dsi.getAccount_id() : dsi.getDataset_id());
+        }
+        return ids;
+    }
+
+    // Helper method to mirror a grant in Dataset.grantedAccounts, which the
+    // listings query
+    private void updateGrantedAccounts(String accountId, String datasetId, boolean granted) {
+        Update update = granted ? new Update().addToSet("grantedAccounts", accountId)
+                : new Update().pull("grantedAccounts", accountId);
+        mongoTemplateAnalysisDB.updateFirst(new Query(Criteria.where("id").is(datasetId)),
+                update.set("last_modified", new DateTime()), Dataset.class);
     }
     
     // ROLE_ADMIN: ok.
@@ -189,7 +267,12 @@ public class DatasetInfoServiceImpl implements DatasetInfoService {
     // ROLE_USER:  ok.
     @Override
     public void delete(String id) {
-        mongoTemplateUserDB.remove(find(id));
+        DatasetInfo dsi = find(id);
+        mongoTemplateUserDB.remove(dsi);
+        if (dsi != null) {
+            updateGrantedAccounts(dsi.getAccount_id(), dsi.getDataset_id(), false);
+            grantIndex.revoke(dsi.getAccount_id(), dsi.getDataset_id());
+        }
         logger.info("Removed dataset info " + id + " from MongoDB.");
     }
 
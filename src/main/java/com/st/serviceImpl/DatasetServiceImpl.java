@@ -3,15 +3,24 @@ package com.st.serviceImpl;
 import java.util.ArrayList;
 import java.util.List;
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import com.st.component.GrantIndex;
+import com.st.component.GrantedAccountsMigration;
 import com.st.model.Dataset;
 import com.st.model.DatasetInfo;
+import com.st.model.IndexStatistics;
 import com.st.model.MongoUserDetails;
 import com.st.service.DatasetService;
+import com.st.util.CursorOperations;
+import com.st.util.CursorOperations.CursorIterator;
 
 /**
  * This class implements the store/retrieve logic to MongoDB for the data model
@@ -34,7 +43,10 @@ public class DatasetServiceImpl implements DatasetService {
     MongoOperations mongoTemplateUserDB;
 
     @Autowired
-    FileServiceImpl filesService;
+    GrantIndex grantIndex;
+
+    @Autowired
+    GrantedAccountsMigration grantedAccountsMigration;
     
     //add the file services
     
@@ -68,10 +80,7 @@ public class DatasetServiceImpl implements DatasetService {
     // Helper method to check if a dataset is granted to an user
     @Override
     public boolean datasetIsGranted(String datasetId, MongoUserDetails user) {
-        List<DatasetInfo> dsis = mongoTemplateUserDB.find(
-                new Query(Criteria.where("dataset_id").is(datasetId).and("account_id").is(user.getId())), 
-                DatasetInfo.class);
-        return (dsis != null && dsis.size() > 0);
+        return grantIndex.isGranted(user.getId(), datasetId);
     }
 
     // Helper method to check for duplicated names
@@ -114,7 +123,7 @@ public class DatasetServiceImpl implements DatasetService {
     public List<Dataset> list() {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin()) {
-            return mongoTemplateAnalysisDB.findAll(Dataset.class);
+            return mongoTemplateAnalysisDB.find(listQuery(null, false, null, 0), Dataset.class);
         }
         return findByAccount(currentUser.getId());
     }
@@ -123,37 +132,90 @@ public class DatasetServiceImpl implements DatasetService {
     // ROLE_CM:    granted datasets.
     // ROLE_USER:  granted datasets.
     @Override
-    public boolean update(Dataset ds) {
+    public CursorIterator<Dataset> iteratePage(String accountId, boolean onlyEnabled, String after,
+            int limit, String... fields) {
+        Query query = pageQuery(accountId, onlyEnabled, after, limit, fields);
+        if (query == null) {
+            return null;
+        }
+        return CursorOperations.find(mongoTemplateAnalysisDB, query, Dataset.class);
+    }
+
+    // Helper method to build the query of a page of datasets visible to the
+    // current user. Returns null if the account is not accessible.
+    private Query pageQuery(String accountId, boolean onlyEnabled, String after, int limit,
+            String... fields) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
-        if (currentUser.isAdmin() || datasetIsGranted(ds.getId(), currentUser)) {
-            logger.info("Updating dataset " + ds.getId());
-            mongoTemplateAnalysisDB.save(ds);
-            return true;
+        if (accountId == null && !currentUser.isAdmin()) {
+            accountId = currentUser.getId();
         }
-        return false;
+        if (accountId != null && !currentUser.isAdmin() && !currentUser.getId().equals(accountId)) {
+            return null;
+        }
+        return listQuery(accountId, onlyEnabled, after, limit, fields);
+    }
+
+    // Helper method to build the query of a listing. A null account lists all
+    // datasets, a null cursor starts from the first one and a limit of 0 returns all.
+    private Query listQuery(String accountId, boolean onlyEnabled, String after, int limit,
+            String... fields) {
+        // Dataset.grantedAccounts mirrors the dataset_info objects and is
+        // indexed together with enabled, so a single query is enough once it
+        // has been migrated.
+        Query query = new Query();
+        Criteria id = null;
+        if (accountId != null) {
+            if (grantedAccountsMigration.isCompleted()) {
+                query.addCriteria(Criteria.where("grantedAccounts").is(accountId));
+            } else {
+                id = Criteria.where("id").in(grantedDatasetIds(accountId));
+            }
+        }
+        if (onlyEnabled) {
+            query.addCriteria(Criteria.where("enabled").is(true));
+        }
+        if (after != null) {
+            Object from = ObjectId.isValid(after) ? new ObjectId(after) : after;
+            id = id == null ? Criteria.where("id").gt(from) : id.gt(from);
+        }
+        if (id != null) {
+            query.addCriteria(id);
+        }
+        if (after != null || limit > 0) {
+            query.with(new Sort(Sort.Direction.ASC, "_id"));
+        }
+        if (limit > 0) {
+            query.limit(limit);
+        }
+        for (String field : fields) {
+            query.fields().include(field);
+        }
+        return query;
+    }
+
+    // Helper method to read the IDs of the datasets granted to an account
+    // from the dataset_info objects, which are used until grantedAccounts
+    // has been migrated.
+    private List<Object> grantedDatasetIds(String accountId) {
+        Query query = new Query(Criteria.where("account_id").is(accountId));
+        query.fields().include("dataset_id");
+        List<Object> ids = new ArrayList<>();
+        for (DatasetInfo dsi : mongoTemplateUserDB.find(query, DatasetInfo.class)) {
+            String datasetId = dsi.getDataset_id();
+            ids.add(ObjectId.isValid(datasetId) ? new ObjectId(datasetId) : datasetId);
+        }
+        return ids;
     }
 
-    
     // ROLE_ADMIN: all datasets.
     // ROLE_CM:    granted datasets.
     // ROLE_USER:  granted datasets.
     @Override
-    public boolean delete(String id) {
+    public boolean update(Dataset ds) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
-        Dataset dataset = find(id);
-        if (dataset != null && (currentUser.isAdmin() 
-                || (datasetIsGranted(id, currentUser)))) {
-            logger.info("Deleting dataset " + id);
-            mongoTemplateAnalysisDB.remove(dataset);
-            boolean files_deleted = true;
-            for (String filename : dataset.getFiles()) {
-                files_deleted &= filesService.delete(filename, id);
-            }
-            files_deleted &= filesService.delete(dataset.getDataFile(), id);
-            if (!files_deleted) {
-                logger.info("There were error deleting the files for " + id);
-                return false;
-            }
+        if (currentUser.isAdmin() || datasetIsGranted(ds.getId(), currentUser)) {
+            logger.info("Updating dataset " + ds.getId());
+            mongoTemplateAnalysisDB.save(ds);
             return true;
         }
         return false;
@@ -169,10 +231,6 @@ public class DatasetServiceImpl implements DatasetService {
             return null;
         } 
         // In case of pre-login calls.
-        if (customUserDetailsService == null) {
-            return null;
-        }   
-        // In case of pre-login calls.
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser == null) {
             return null;
@@ -183,39 +241,61 @@ public class DatasetServiceImpl implements DatasetService {
         }
         
         try {
-            // retrieve dataset_info objects by account
-            List<DatasetInfo> dat_infos = mongoTemplateUserDB.find(
-                    new Query(Criteria.where("account_id").is(accountId)), DatasetInfo.class);  
-            if (dat_infos == null) {
-                return null;
-            }
-                
-            List<String> strs = new ArrayList<>(dat_infos.size());
-            for (DatasetInfo dsi : dat_infos) {              
-                strs.add(dsi.getDataset_id());
-            }
-                
             return mongoTemplateAnalysisDB.find(
-                    new Query(Criteria.where("id").in(strs)), Dataset.class);
-            
+                    listQuery(accountId, false, null, 0), Dataset.class);
         } catch (Exception e) {
             logger.info("There was an error retrieving datasets by account", e);
             return null;
         }
     }
 
-    //helper function to set the account_id field to empty for datasets created
-    //by the given accountId param
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
     @Override
-    public void clearAccountCreator(String accountId) {
-        List<Dataset> datasets = list();
-        for (Dataset dataset : datasets) {
-            if (dataset.getCreated_by_account_id() != null 
-                    && dataset.getCreated_by_account_id().equals(accountId)) {
-                dataset.setCreated_by_account_id("");
-                update(dataset);
-            }
+    public int clearAccountCreator(String accountId) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        if (currentUser.isAdmin()) {
+            return clearCreator(accountId, null);
+        }
+        return clearCreator(accountId, grantedAccountsMigration.isCompleted()
+                ? Criteria.where("grantedAccounts").is(currentUser.getId())
+                : Criteria.where("id").in(grantedDatasetIds(currentUser.getId())));
+    }
+
+    // No role check, see DatasetService.
+    @Override
+    public int clearCreator(String accountId) {
+        return clearCreator(accountId, null);
+    }
+
+    //helper function to set the account_id field to empty for datasets created
+    //by the given accountId param (and matching the restriction, if any),
+    //with a single update on the server
+    private int clearCreator(String accountId, Criteria restriction) {
+        if (accountId == null || accountId.isEmpty()) {
+            return 0;
+        }
+        Query query = new Query(Criteria.where("created_by_account_id").is(accountId));
+        if (restriction != null) {
+            query.addCriteria(restriction);
         }
+        // Every matched dataset is modified, as the creator changes to "".
+        // updateMulti bypasses the auditing, so last_modified is set here.
+        final int updated = mongoTemplateAnalysisDB.updateMulti(query,
+                new Update().set("created_by_account_id", "")
+                .set("last_modified", new DateTime()), Dataset.class).getN();
+        logger.info("Cleared creator " + accountId + " of datasets: " 
+                + updated + " matched and modified");
+        return updated;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public IndexStatistics getGrantStatistics() {
+        return grantIndex.getStatistics();
     }
 
 }
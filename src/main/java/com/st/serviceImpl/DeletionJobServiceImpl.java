@@ -0,0 +1,93 @@
+package com.st.serviceImpl;
+
+import com.st.component.DeletionJobEngine;
+import com.st.model.Account;
+import com.st.model.DeletionJob;
+import com.st.model.MongoUserDetails;
+import com.st.service.DeletionJobService;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class implements the store/retrieve logic to MongoDB for the data model
+ * class "DeletionJob". The jobs are run by the DeletionJobEngine. The DB
+ * connection is handled in a MongoOperations object, which is configured in
+ * mvc-dispather-servlet.xml
+ */
+@Service
+public class DeletionJobServiceImpl implements DeletionJobService {
+
+    private static final Logger logger = Logger.getLogger(DeletionJobServiceImpl.class);
+
+    @Autowired
+    MongoUserDetailsServiceImpl customUserDetailsService;
+
+    @Autowired
+    MongoOperations mongoTemplateUserDB;
+
+    @Autowired
+    DatasetServiceImpl datasetService;
+
+    @Autowired
+    DeletionJobEngine deletionJobEngine;
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own.
+    // ROLE_USER:  own.
+    @Override
+    public DeletionJob find(String id) {
+        DeletionJob job = mongoTemplateUserDB.findOne(
+                new Query(Criteria.where("id").is(id)), DeletionJob.class);
+        if (job == null) {
+            return null;
+        }
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        if (currentUser.isAdmin() || currentUser.getId().equals(job.getCreated_by_account_id())) {
+            return job;
+        }
+        return null;
+    }
+
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public DeletionJob deleteDataset(String datasetId) {
+        // find() checks that the dataset is granted to the current user
+        if (datasetService.find(datasetId) == null) {
+            return null;
+        }
+        return submit(new DeletionJob(DeletionJob.KIND_DATASET, datasetId, false));
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    nope.
+    // ROLE_USER:  nope.
+    @Override
+    public DeletionJob deleteAccount(String accountId, boolean cascade) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        if (!currentUser.isAdmin() || mongoTemplateUserDB.findOne(
+                new Query(Criteria.where("id").is(accountId)), Account.class) == null) {
+            return null;
+        }
+        return submit(new DeletionJob(DeletionJob.KIND_ACCOUNT, accountId, cascade));
+    }
+
+    // Helper method to store a new job and wake up the engine
+    private DeletionJob submit(DeletionJob job) {
+        job.setCreated_by_account_id(customUserDetailsService.loadCurrentUser().getId());
+        job.setCreated_at(new DateTime());
+        job.setLast_modified(job.getCreated_at());
+        mongoTemplateUserDB.insert(job);
+        logger.info("Added deletion job " + job.getId() + " of " + job.getKind() + " " 
+                + job.getTarget_id() + " to MongoDB.");
+        deletionJobEngine.wakeUp();
+        return job;
+    }
+
+}
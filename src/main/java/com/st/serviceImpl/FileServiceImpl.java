@@ -2,16 +2,37 @@ package com.st.serviceImpl;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.component.DiskCache;
+import com.st.component.ExpiringCache;
+import com.st.component.MultipartUploader;
+import com.st.model.CacheStatistics;
+import com.st.model.FileDeleteResult;
 import com.st.model.FileMetadata;
 import com.st.model.MongoUserDetails;
 import com.st.service.FileService;
+import com.st.util.StreamOperations;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import org.apache.commons.io.IOUtils;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,25 +57,44 @@ public class FileServiceImpl implements FileService {
     @Autowired
     MongoUserDetailsServiceImpl customUserDetailsService;
 
+    @Autowired
+    DiskCache featuresFileCache;
+
+    @Autowired
+    ExpiringCache<FileMetadata> featuresMetadataCache;
+
+    @Autowired
+    MultipartUploader s3Uploader;
+
     private @Value("${s3.featuresbucket}")
     String featuresBucket;
 
     private static final Logger logger = Logger.getLogger(ImageServiceImpl.class);
 
+    /** Max. no. of keys of a multi-object delete on S3. */
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
     @Override
     public FileMetadata getMetadata(String file, String id) {
+        final String key = id + "/" + file;
+        FileMetadata cached = featuresMetadataCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
         try {
-            final ObjectMetadata meta = s3Client.getObject(featuresBucket, 
-                    id + "/" + file).getObjectMetadata();
+            // HEAD request, the object body is not fetched.
+            final ObjectMetadata meta = s3Client.getObjectMetadata(featuresBucket, key);
             FileMetadata meta_file = new FileMetadata();
             meta_file.setFilename(file);
             meta_file.setDatasetId(id);
             meta_file.setLastModified(new DateTime(meta.getLastModified()));
             meta_file.setCreated(new DateTime(meta.getLastModified()));
             meta_file.setSize(meta.getContentLength());
+            meta_file.setEtag(meta.getETag());
+            featuresMetadataCache.put(key, meta_file);
             return meta_file;
         } catch (AmazonClientException e) {
             logger.error("Failed to retrieve meta data for file " + id, e);
@@ -67,22 +107,140 @@ public class FileServiceImpl implements FileService {
     // ROLE_USER:  ok.
     @Override
     public InputStream find(String file, String id) {
+        DiskCache.Entry entry = cachedEntry(file, id);
+        if (entry != null) {
+            try {
+                return new FileInputStream(entry.file);
+            } catch (FileNotFoundException e) {
+                // Evicted in the meantime, read from S3.
+            }
+        }
         try {
             // We cache the contents in a byte array so that the S3 stream can be closed ASAP.
             ByteArrayOutputStream bos = new ByteArrayOutputStream(30 * 1024 * 1024);
-            S3ObjectInputStream in = s3Client.getObject(featuresBucket, 
-                    id + "/" + file).getObjectContent();
-            IOUtils.copy(in, bos);
-            in.close();   // ASAP!
-            InputStream bis = new ByteArrayInputStream(bos.toByteArray());
-            bos.close();
-            return bis;
-        } catch (AmazonClientException | IOException e) {
+            if (streamAndCache(file, id, bos) < 0) {
+                return null;
+            }
+            return new ByteArrayInputStream(bos.toByteArray());
+        } catch (IOException e) {
             logger.error("Failed to download file " + id, e);
             return null;
         }
     }
 
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public long stream(String file, String id, OutputStream out) throws IOException {
+        DiskCache.Entry entry = cachedEntry(file, id);
+        if (entry != null) {
+            try {
+                return StreamOperations.transfer(entry.file, 0, entry.size, out);
+            } catch (FileNotFoundException e) {
+                // Evicted in the meantime, read from S3.
+            }
+        }
+        return streamAndCache(file, id, out);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public long stream(String file, String id, long start, long end, 
+            OutputStream out) throws IOException {
+        // Ranges are served from the cache but do not populate it.
+        DiskCache.Entry entry = cachedEntry(file, id);
+        if (entry != null && end < entry.size) {
+            try {
+                return StreamOperations.transfer(entry.file, start, end - start + 1, out);
+            } catch (FileNotFoundException e) {
+                // Evicted in the meantime, read from S3.
+            }
+        }
+        GetObjectRequest request = new GetObjectRequest(featuresBucket, id + "/" + file);
+        request.setRange(start, end);
+        return stream(request, id, out);
+    }
+
+    // Helper method to look up a file in the local disk cache. The entry is
+    // revalidated against the S3 ETag of the file metadata. Returns null if
+    // the file is not cached, in which case it must be read from S3.
+    private DiskCache.Entry cachedEntry(String file, String id) {
+        if (!featuresFileCache.isEnabled()) {
+            return null;
+        }
+        final FileMetadata meta = getMetadata(file, id);
+        if (meta == null) {
+            return null;
+        }
+        return featuresFileCache.get(featuresBucket + "/" + id + "/" + file, meta.getEtag());
+    }
+
+    // Helper method to pipe an S3 object into an output stream and, unless
+    // another request is already doing it, into the local disk cache at the
+    // same time, so that a miss is served from the first S3 byte. The cache
+    // is only filled if the object is read to its end.
+    private long streamAndCache(String file, String id, OutputStream out) throws IOException {
+        final String key = id + "/" + file;
+        final FileMetadata meta = featuresFileCache.isEnabled() ? getMetadata(file, id) : null;
+        final DiskCache.Fill fill = meta == null ? null 
+                : featuresFileCache.fill(featuresBucket + "/" + key, meta.getEtag(), meta.getSize());
+        if (fill == null) {
+            return stream(new GetObjectRequest(featuresBucket, key), id, out);
+        }
+        boolean filled = false;
+        try {
+            // The cached file must be the version of the ETag it is stored with.
+            final long count = stream(new GetObjectRequest(featuresBucket, key)
+                    .withMatchingETagConstraint(meta.getEtag()), id, new TeeOutputStream(out, fill));
+            if (count >= 0) {
+                filled = fill.commit() != null;
+                if (filled) {
+                    logger.info("Cached file " + id + " on local disk");
+                }
+                return count;
+            }
+        } finally {
+            if (!filled) {
+                fill.abort();
+            }
+        }
+        // Modified since the HEAD request.
+        return stream(new GetObjectRequest(featuresBucket, key), id, out);
+    }
+
+    // Helper method to pipe a (ranged) S3 object into an output stream
+    private long stream(GetObjectRequest request, String id, 
+            OutputStream out) throws IOException {
+        final S3Object object;
+        try {
+            object = s3Client.getObject(request);
+        } catch (AmazonClientException e) {
+            logger.error("Failed to download file " + id, e);
+            return -1;
+        }
+        if (object == null) {
+            return -1;
+        }
+        S3ObjectInputStream in = object.getObjectContent();
+        boolean completed = false;
+        try {
+            final long count = StreamOperations.copy(in, out);
+            completed = true;
+            return count;
+        } finally {
+            if (completed) {
+                in.close();
+            } else {
+                // Client gone or S3 failure: drop the connection instead of
+                // draining the rest of the object.
+                in.abort();
+            }
+        }
+    }
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  nope.
@@ -95,6 +253,14 @@ public class FileServiceImpl implements FileService {
      */
     @Override
     public boolean addUpdate(String filename, String id, byte[] file) {
+        return addUpdate(filename, id, new ByteArrayInputStream(file), file.length);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public boolean addUpdate(String filename, String id, InputStream file, long length) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isUser()) {
             return false;
@@ -103,10 +269,12 @@ public class FileServiceImpl implements FileService {
         ObjectMetadata om = new ObjectMetadata();
         om.setContentType("text/plain");
         om.setContentEncoding("gzip");
-        InputStream is = new ByteArrayInputStream(file);
         final boolean exists = (getMetadata(filename, id) != null);
         try {
-            s3Client.putObject(featuresBucket, id + "/" + filename, is, om);
+            // Large files are uploaded in concurrent parts.
+            s3Uploader.upload(featuresBucket, id + "/" + filename, om, file, length);
+            featuresMetadataCache.invalidate(id + "/" + filename);
+            featuresFileCache.invalidate(featuresBucket + "/" + id + "/" + filename);
         } catch(AmazonClientException e) {
             logger.info("Error putting file " + id + " on Amazon S3", e);
             return false;           
@@ -131,6 +299,8 @@ public class FileServiceImpl implements FileService {
         }
         try {
             s3Client.deleteObject(featuresBucket, id + "/" + filename);
+            featuresMetadataCache.invalidate(id + "/" + filename);
+            featuresFileCache.invalidate(featuresBucket + "/" + id + "/" + filename);
             logger.info("Deleted file " + id + " from Amazon S3");
             return true;
         } catch(AmazonClientException e) {
@@ -139,4 +309,88 @@ public class FileServiceImpl implements FileService {
         }
     }
 
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public List<FileDeleteResult> deleteAll(String id) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        if (currentUser.isUser()) {
+            return null;
+        }
+        return deleteKeys(listKeys(id));
+    }
+
+    // No role check, see FileService.
+    @Override
+    public List<String> listKeys(String id) {
+        List<String> keys = new ArrayList<>();
+        ObjectListing listing = s3Client.listObjects(new ListObjectsRequest()
+                .withBucketName(featuresBucket)
+                .withPrefix(id + "/")
+                .withMaxKeys(MAX_KEYS_PER_DELETE));
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                keys.add(summary.getKey());
+            }
+            if (!listing.isTruncated()) {
+                return keys;
+            }
+            listing = s3Client.listNextBatchOfObjects(listing);
+        }
+    }
+
+    // No role check, see FileService.
+    @Override
+    public List<FileDeleteResult> deleteKeys(List<String> keys) {
+        List<FileDeleteResult> results = new ArrayList<>(keys.size());
+        int failed = 0;
+        for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_DELETE) {
+            List<String> batch = keys.subList(from, Math.min(from + MAX_KEYS_PER_DELETE, keys.size()));
+            Map<String, String> errors = new HashMap<>();
+            DeleteObjectsRequest request = new DeleteObjectsRequest(featuresBucket);
+            request.setQuiet(true);
+            List<KeyVersion> versions = new ArrayList<>(batch.size());
+            for (String key : batch) {
+                versions.add(new KeyVersion(key));
+            }
+            request.setKeys(versions);
+            try {
+                s3Client.deleteObjects(request);
+            } catch (MultiObjectDeleteException e) {
+                for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                    logger.info("Error deleting " + error.getKey() + " from Amazon S3: " 
+                            + error.getMessage());
+                    errors.put(error.getKey(), error.getCode() + ": " + error.getMessage());
+                }
+            } catch (AmazonClientException e) {
+                logger.info("Error deleting " + batch.size() + " files from Amazon S3.", e);
+                for (String key : batch) {
+                    errors.put(key, e.getMessage());
+                }
+            }
+            for (String key : batch) {
+                if (errors.containsKey(key)) {
+                    results.add(new FileDeleteResult(key, false, errors.get(key)));
+                    failed++;
+                } else {
+                    featuresMetadataCache.invalidate(key);
+                    featuresFileCache.invalidate(featuresBucket + "/" + key);
+                    results.add(new FileDeleteResult(key, true, null));
+                }
+            }
+        }
+        logger.info("Deleted " + (keys.size() - failed) + " of " + keys.size() 
+                + " files from Amazon S3");
+        return results;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public CacheStatistics getCacheStatistics() {
+        return featuresFileCache.getStatistics();
+    }
+
 }
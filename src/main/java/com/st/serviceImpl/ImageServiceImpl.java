@@ -1,24 +1,48 @@
 package com.st.serviceImpl;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.component.DecodeScheduler;
+import com.st.component.ImageMetadataIndex;
+import com.st.component.ImageRenditions;
+import com.st.component.S3Writer;
+import com.st.component.TilePyramidBuilder;
+import com.st.model.DecodeStatistics;
 import com.st.model.FileMetadata;
 import com.st.model.MongoUserDetails;
+import com.st.model.TilePyramid;
 import com.st.service.ImageService;
+import com.st.util.S3Operations;
+import com.st.util.S3Operations.StoredObject;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.RejectedExecutionException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -37,6 +61,21 @@ public class ImageServiceImpl implements ImageService {
     
     @Autowired
     MongoUserDetailsServiceImpl customUserDetailsService;
+
+    @Autowired
+    ImageMetadataIndex imageMetadataIndex;
+
+    @Autowired
+    TilePyramidBuilder tilePyramidBuilder;
+
+    @Autowired
+    ImageRenditions imageRenditions;
+
+    @Autowired
+    DecodeScheduler decodeScheduler;
+
+    @Autowired
+    S3Writer s3Writer;
     
     private @Value("${s3.imagebucket}")
     String imageBucket;
@@ -44,26 +83,100 @@ public class ImageServiceImpl implements ImageService {
     private static final Logger logger = Logger
             .getLogger(ImageServiceImpl.class);
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Max. no. of keys returned by S3 per listing request. */
+    private static final int MAX_KEYS_PER_LISTING = 1000;
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  nope.
     @Override
     public List<FileMetadata> list() {
         List<FileMetadata> imageMetadataList = new ArrayList<>();
+        Iterator<FileMetadata> it = iterate();
+        while (it.hasNext()) {
+            imageMetadataList.add(it.next());
+        }
+        return imageMetadataList;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public Iterator<FileMetadata> iterate() {
+        return iteratePage(null, null, 0);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public Iterator<FileMetadata> iteratePage(String prefix, String marker, int limit) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
-        if (currentUser.isAdmin() || currentUser.isContentManager()) {
-            ObjectListing objects = s3Client.listObjects(imageBucket);
-            List<S3ObjectSummary> objs = objects.getObjectSummaries();
-            for (S3ObjectSummary o : objs) {
-                FileMetadata im = new FileMetadata();
-                im.setFilename(o.getKey());
-                im.setLastModified(new DateTime(o.getLastModified()));
-                    im.setCreated(new DateTime(o.getLastModified()));
-                im.setSize(o.getSize());
-                imageMetadataList.add(im);
+        if (!currentUser.isAdmin() && !currentUser.isContentManager()) {
+            return Collections.<FileMetadata>emptyList().iterator();
+        }
+        // Objects derived from an image are stored under "{id}/" and not listed.
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(imageBucket)
+                .withPrefix(prefix)
+                .withMarker(marker)
+                .withDelimiter("/");
+        if (limit > 0) {
+            request.setMaxKeys(Math.min(limit, MAX_KEYS_PER_LISTING));
+        }
+        return new ListingIterator(s3Client.listObjects(request), limit);
+    }
+
+    /**
+     * Iterates the metadata of a bucket listing, fetching the next page of the
+     * listing from Amazon S3 when the current one is exhausted, up to a limit.
+     */
+    private class ListingIterator implements Iterator<FileMetadata> {
+
+        private ObjectListing listing;
+        private Iterator<S3ObjectSummary> summaries;
+        private int remaining;
+
+        ListingIterator(ObjectListing listing, int limit) {
+            this.listing = listing;
+            this.summaries = listing.getObjectSummaries().iterator();
+            this.remaining = limit > 0 ? limit : Integer.MAX_VALUE;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (remaining <= 0) {
+                return false;
             }
+            while (!summaries.hasNext() && listing.isTruncated()) {
+                listing = s3Client.listNextBatchOfObjects(listing);
+                summaries = listing.getObjectSummaries().iterator();
+            }
+            return summaries.hasNext();
+        }
+
+        @Override
+        public FileMetadata next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            S3ObjectSummary o = summaries.next();
+            remaining--;
+            FileMetadata im = new FileMetadata();
+            im.setFilename(o.getKey());
+            im.setLastModified(new DateTime(o.getLastModified()));
+            im.setCreated(new DateTime(o.getLastModified()));
+            im.setSize(o.getSize());
+            return im;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        return imageMetadataList;
     }
 
     // ROLE_ADMIN: ok.
@@ -71,27 +184,115 @@ public class ImageServiceImpl implements ImageService {
     // ROLE_USER:  ok.
     @Override
     public FileMetadata getImageMetadata(String filename) {
-        List<FileMetadata> imList = this.list();
-        for (FileMetadata im : imList) {
-            if (im.getFilename().equals(filename)) {
-                return im;
+        return imageMetadataIndex.get(filename);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public DecodeStatistics getDecodeStatistics() {
+        return decodeScheduler.getStatistics();
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public StoredObject open(String filename, List<String> etags, DateTime modifiedSince,
+            boolean metadataOnly) {
+        return openObject(filename, etags, modifiedSince, metadataOnly);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public void writeAs(StoredObject image, String format, OutputStream out) throws IOException {
+        decodeAndWrite(image, null, 1, format, out);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public void writeRegion(StoredObject image, int x, int y, int width, int height,
+            double scale, OutputStream out) throws IOException {
+        decodeAndWrite(image, new Rectangle(x, y, width, height), scale, "jpeg", out);
+    }
+
+    // Helper method to decode a region of an opened image (all of it if
+    // null), scaled, and write it in the given format. The memory of the
+    // decode is estimated from the image header and admitted by the decode
+    // scheduler before decoding. The scanlines below the region are not read.
+    private void decodeAndWrite(StoredObject image, Rectangle area, double scale, String format,
+            OutputStream out) throws IOException {
+        final String filename = image.getMetadata().getFilename();
+        try (ImageInputStream iis = ImageIO.createImageInputStream(image.getContent())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format of " + filename);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                Rectangle bounds = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+                Rectangle region = area == null ? bounds : area.intersection(bounds);
+                if (region.isEmpty()) {
+                    throw new IllegalArgumentException("The region is outside of the image.");
+                }
+                // Subsampling skips the pixels (and scanlines) that would be
+                // scaled away, so at most 4 times the output is decoded.
+                final int subsampling = Math.max(1, (int) Math.floor(1 / scale));
+                final int outWidth = Math.max(1, (int) Math.round(region.width * scale));
+                final int outHeight = Math.max(1, (int) Math.round(region.height * scale));
+                final long decodedBytes = DecodeScheduler.estimateBytes(
+                        (region.width + subsampling - 1) / subsampling,
+                        (region.height + subsampling - 1) / subsampling);
+                DecodeScheduler.Permit permit = decodeScheduler.admit(
+                        decodedBytes + DecodeScheduler.estimateBytes(outWidth, outHeight));
+                try {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(region);
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage img = reader.read(0, param);
+                    if (img.getWidth() != outWidth || img.getHeight() != outHeight) {
+                        BufferedImage scaled = new BufferedImage(outWidth, outHeight,
+                                BufferedImage.TYPE_INT_RGB);
+                        Graphics2D g = scaled.createGraphics();
+                        try {
+                            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                            g.drawImage(img, 0, 0, outWidth, outHeight, null);
+                        } finally {
+                            g.dispose();
+                        }
+                        img = scaled;
+                    }
+                    if (!ImageIO.write(img, format, out)) {
+                        throw new IllegalArgumentException("Unsupported image format " + format + ".");
+                    }
+                } finally {
+                    permit.release();
+                }
+            } finally {
+                reader.dispose();
             }
         }
-        return null;
     }
 
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
     @Override
-    public byte[] getCompressedImage(String filename) {
+    public ImageRenditions.Rendition getRendition(String filename, String name) {
+        if (!imageRenditions.isRendition(name)) {
+            return null;
+        }
         try {
-            S3ObjectInputStream in = s3Client.getObject(imageBucket, filename).getObjectContent();
-            byte[] bytes = IOUtils.toByteArray(in);
-            in.close();   // As soon as possible.
-            return bytes;
+            return imageRenditions.get(filename, name);
         } catch (IOException | AmazonClientException e) {
-            logger.error("Error getting JPEG " + filename + " from Amazon S3.", e);
+            logger.error("Error getting " + name + " of image " + filename + " from Amazon S3.", e);
             return null;
         }
     }
@@ -100,17 +301,51 @@ public class ImageServiceImpl implements ImageService {
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
     @Override
-    public BufferedImage getBufferedImage(String filename) {
+    public TilePyramid getTilePyramid(String filename) {
+        S3ObjectInputStream in = null;
         try {
-            S3ObjectInputStream in = s3Client.getObject(imageBucket, filename).getObjectContent();
-            BufferedImage img = ImageIO.read(in);
-            in.close();   // As soon as possible.
-            return img;
-        } catch (IOException e) {
-            logger.error("Error getting BufferedImage " + filename + " from Amazon S3.", e);
+            in = s3Client.getObject(imageBucket, 
+                    TilePyramidBuilder.pyramidKey(filename)).getObjectContent();
+            return MAPPER.readValue(in, TilePyramid.class);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                logger.error("Error getting tile pyramid of " + filename + " from Amazon S3.", e);
+            }
+            return null;
+        } catch (IOException | AmazonClientException e) {
+            logger.error("Error getting tile pyramid of " + filename + " from Amazon S3.", e);
             return null;
+        } finally {
+            IOUtils.closeQuietly(in);
         }
+    }
 
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public StoredObject openTile(String filename, String version, int level, int x, int y,
+            List<String> etags, DateTime modifiedSince, boolean metadataOnly) {
+        return openObject(TilePyramidBuilder.tileKey(filename, version, level, x, y), etags,
+                modifiedSince, metadataOnly);
+    }
+
+    // Helper method to open an object of the bucket conditionally, returns
+    // null if it does not exist or cannot be read
+    private StoredObject openObject(String key, List<String> etags, DateTime modifiedSince,
+            boolean metadataOnly) {
+        try {
+            return S3Operations.open(s3Client, imageBucket, key, etags, modifiedSince,
+                    metadataOnly);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                logger.error("Error getting " + key + " from Amazon S3.", e);
+            }
+            return null;
+        } catch (AmazonClientException e) {
+            logger.error("Error getting " + key + " from Amazon S3.", e);
+            return null;
+        }
     }
 
     // ROLE_ADMIN: ok.
@@ -118,17 +353,23 @@ public class ImageServiceImpl implements ImageService {
     // ROLE_USER:  nope.
     @Override
     public void add(String filename, BufferedImage img) {
+        File file = null;
+        boolean handedOver = false;
         try {
-            ObjectMetadata om = new ObjectMetadata();
-            om.setContentType("image/jpeg");
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(img, "jpeg", baos);
-            InputStream is = new ByteArrayInputStream(baos.toByteArray());
-            s3Client.putObject(imageBucket, filename, is, om);
-            logger.info("Added image from BuffereedImage " + filename + " to Amazon S3.");
+            file = File.createTempFile("image-", ".jpg");
+            // The decoded image was admitted when the request body was read.
+            ImageIO.write(img, "jpeg", file);
+            store(filename, file);
+            handedOver = true;
+            derive(filename, file);
+            logger.info("Added image from BufferedImage " + filename + " to Amazon S3.");
         } catch (IOException | AmazonClientException e) {
             logger.error("Error adding image " + filename + " to Amazon S3:", e);
             throw new RuntimeException("Error adding image " + filename + " to Amazon S3", e);
+        } finally {
+            if (!handedOver) {
+                deleteFile(file);
+            }
         }
     }
 
@@ -136,16 +377,82 @@ public class ImageServiceImpl implements ImageService {
     // ROLE_CM:    ok.
     // ROLE_USER:  nope.
     @Override
-    public void addCompressed(String filename, byte[] img) {
+    public void ingest(String filename, InputStream in) throws IOException {
+        // Spooled to disk: the upload is stored as is and its renditions are
+        // made from the file, band by band, so it is never held in memory.
+        File file = File.createTempFile("image-", ".jpg");
+        boolean handedOver = false;
         try {
-            ObjectMetadata om = new ObjectMetadata();
-            om.setContentType("image/jpeg");
-            InputStream is = new ByteArrayInputStream(img);
-            s3Client.putObject(imageBucket, filename, is, om);
-            logger.info("Added image from JPEG " + filename + " to Amazon S3.");
-        } catch (AmazonClientException e) {
-            logger.error("Error adding image " + filename + " to Amazon S3:" + e.getMessage());
-            throw new RuntimeException("Error adding image " + filename + " to Amazon S3", e);
+            try (OutputStream out = new FileOutputStream(file)) {
+                IOUtils.copyLarge(in, out);
+            }
+            checkJpeg(filename, file);
+            try {
+                store(filename, file);
+            } catch (IOException | AmazonClientException e) {
+                // Not a fault of the upload.
+                logger.error("Error adding image " + filename + " to Amazon S3:", e);
+                throw new RuntimeException("Error adding image " + filename + " to Amazon S3", e);
+            }
+            handedOver = true;
+            derive(filename, file);
+            logger.info("Added image from JPEG upload " + filename + " to Amazon S3.");
+        } finally {
+            if (!handedOver) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    // Helper method to check that a file is a JPEG image, reading only its header
+    private static void checkJpeg(String filename, File file) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format of " + filename);
+            }
+            ImageReader reader = readers.next();
+            try {
+                if (!"jpeg".equalsIgnoreCase(reader.getFormatName())) {
+                    throw new IOException("Image " + filename + " is not a JPEG image");
+                }
+                reader.setInput(iis, true, true);
+                logger.info("Ingesting JPEG image " + filename + ": " + reader.getWidth(0) 
+                        + "x" + reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Helper method to upload an image from a file. The file is left for the renditions.
+    private void store(String filename, File file) throws IOException {
+        S3Writer.await(s3Writer.put(imageBucket, filename, file, "image/jpeg"));
+        imageMetadataIndex.invalidate(filename);
+    }
+
+    // Helper method to queue the tile pyramid and the renditions of a stored
+    // image, which take over the file. The image stays added if they cannot
+    // be queued: the failures are logged, and the renditions are then made
+    // on the first request.
+    private void derive(String filename, File file) {
+        try {
+            tilePyramidBuilder.submit(filename);
+        } catch (RejectedExecutionException e) {
+            logger.error("Could not queue the tile pyramid of image " + filename, e);
+        }
+        try {
+            imageRenditions.regenerate(filename, file);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Could not queue the renditions of image " + filename
+                    + ", they will be generated on the first request.");
+        }
+    }
+
+    // Helper method to remove a temporary file
+    private static void deleteFile(File file) {
+        if (file != null && !file.delete()) {
+            logger.warn("Could not delete " + file);
         }
     }
 
@@ -158,6 +465,9 @@ public class ImageServiceImpl implements ImageService {
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
             try {
                 s3Client.deleteObject(imageBucket, filename);
+                imageMetadataIndex.invalidate(filename);
+                deleteDerived(filename);
+                imageRenditions.invalidate(filename);
                 logger.info("Deleted image " + filename + " from Amazon S3.");
                 return true;
             } catch(AmazonClientException e) {
@@ -168,4 +478,31 @@ public class ImageServiceImpl implements ImageService {
         return false;
     }
 
+    // Helper method to delete the objects derived from an image (stored
+    // under its "{id}/" prefix), in multi-object deletes of up to 1000 keys
+    private void deleteDerived(String filename) throws AmazonClientException {
+        ObjectListing listing = s3Client.listObjects(new ListObjectsRequest()
+                .withBucketName(imageBucket)
+                .withPrefix(filename + "/")
+                .withMaxKeys(MAX_KEYS_PER_LISTING));
+        while (true) {
+            List<KeyVersion> keys = new ArrayList<>();
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                keys.add(new KeyVersion(summary.getKey()));
+            }
+            if (!keys.isEmpty()) {
+                DeleteObjectsRequest request = new DeleteObjectsRequest(imageBucket);
+                request.setQuiet(true);
+                request.setKeys(keys);
+                s3Client.deleteObjects(request);
+                logger.info("Deleted " + keys.size() + " objects derived from image " 
+                        + filename + " from Amazon S3.");
+            }
+            if (!listing.isTruncated()) {
+                return;
+            }
+            listing = s3Client.listNextBatchOfObjects(listing);
+        }
+    }
+
 }
@@ -10,7 +10,10 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import com.st.component.ExpiringCache;
 import com.st.model.MongoUserDetails;
 
 /**
@@ -18,6 +21,10 @@ import com.st.model.MongoUserDetails;
  * class "MongoUserDetails". The DB connection is handled in a MongoOperations
  * object, which is configured in mvc-dispather-servlet.xml See also class
  * MongoUserDetails.
+ * 
+ * The current user is resolved once per HTTP request and kept as a request
+ * attribute. Optionally, it is also kept for a short time across requests in
+ * an ExpiringCache, which must be invalidated when accounts change.
  */
 @Service
 public class MongoUserDetailsServiceImpl implements UserDetailsService {
@@ -25,36 +32,76 @@ public class MongoUserDetailsServiceImpl implements UserDetailsService {
     private static final Logger logger = Logger
             .getLogger(MongoUserDetailsServiceImpl.class);
 
+    /** Request attribute holding the current user. */
+    private static final String CURRENT_USER_ATTRIBUTE = 
+            MongoUserDetailsServiceImpl.class.getName() + ".currentUser";
+
     @Autowired
     MongoOperations mongoTemplateUserDB;
 
-    private final String DB_COLLECTION_NAME = "account";
+    @Autowired
+    ExpiringCache<MongoUserDetails> currentUserCache;
 
-    private boolean isProperlyLoaded = false;
+    private final String DB_COLLECTION_NAME = "account";
 
     @Override
     public MongoUserDetails loadUserByUsername(String username)
             throws UsernameNotFoundException {
-        isProperlyLoaded = false;
         MongoUserDetails result = mongoTemplateUserDB.findOne(
                 new Query(Criteria.where("username").is(username)), 
                 MongoUserDetails.class, DB_COLLECTION_NAME);
         if (result == null) {
             logger.info("Failed loading user " + username);
             throw new UsernameNotFoundException(username);
-        } else {
-            isProperlyLoaded = true;
         }
         return result;
     }
 
     public MongoUserDetails loadCurrentUser() {
         Authentication a = SecurityContextHolder.getContext().getAuthentication();
-        return loadUserByUsername(a.getName());
+        final String username = a.getName();
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request != null) {
+            Object cached = request.getAttribute(CURRENT_USER_ATTRIBUTE, 
+                    RequestAttributes.SCOPE_REQUEST);
+            if (cached instanceof MongoUserDetails 
+                    && username.equals(((MongoUserDetails) cached).getUsername())) {
+                return (MongoUserDetails) cached;
+            }
+        }
+        MongoUserDetails user = currentUserCache.get(username);
+        if (user == null) {
+            user = loadUserByUsername(username);
+            currentUserCache.put(username, user);
+        }
+        if (request != null) {
+            request.setAttribute(CURRENT_USER_ATTRIBUTE, user, RequestAttributes.SCOPE_REQUEST);
+        }
+        return user;
     }
 
+    /**
+     * Returns true if there is a logged in user that matches an account.
+     * @return true if the current user can be loaded.
+     */
     public boolean isProperlyLoaded() {
-        return isProperlyLoaded;
+        Authentication a = SecurityContextHolder.getContext().getAuthentication();
+        if (a == null) {
+            return false;
+        }
+        try {
+            return loadCurrentUser() != null;
+        } catch (UsernameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drops the users cached across requests. Must be called when accounts
+     * are added, updated or deleted.
+     */
+    public void invalidateCache() {
+        currentUserCache.invalidateAll();
     }
 
 }
@@ -0,0 +1,87 @@
+package com.st.util;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Misc operations for iterating query results from a MongoDB cursor, so that
+ * large results need not be loaded into a list.
+ */
+public class CursorOperations {
+
+    /**
+     * Iterator over the mapped documents of a cursor. It must be closed.
+     * @param <T> the type of the mapped documents.
+     */
+    public static class CursorIterator<T> implements Iterator<T>, Closeable {
+
+        private final DBCursor cursor;
+        private final MongoConverter converter;
+        private final Class<T> type;
+
+        CursorIterator(DBCursor cursor, MongoConverter converter, Class<T> type) {
+            this.cursor = cursor;
+            this.converter = converter;
+            this.type = type;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!cursor.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return converter.read(type, cursor.next());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Opens a cursor for a query. The criteria, field projection, sort and
+     * limit of the query are mapped like MongoOperations.find() does.
+     * @param <T> the type of the documents.
+     * @param mongoOperations the database.
+     * @param query the query.
+     * @param type the class of the documents.
+     * @return the iterator, to be closed by the caller.
+     */
+    public static <T> CursorIterator<T> find(MongoOperations mongoOperations, Query query,
+            Class<T> type) {
+        MongoConverter converter = mongoOperations.getConverter();
+        MongoPersistentEntity<?> entity = converter.getMappingContext().getPersistentEntity(type);
+        QueryMapper mapper = new QueryMapper(converter);
+        DBObject fields = query.getFieldsObject();
+        DBCursor cursor = mongoOperations.getCollection(mongoOperations.getCollectionName(type))
+                .find(mapper.getMappedObject(query.getQueryObject(), entity),
+                        fields == null ? null : mapper.getMappedObject(fields, entity));
+        if (query.getSortObject() != null) {
+            cursor.sort(mapper.getMappedObject(query.getSortObject(), entity));
+        }
+        if (query.getLimit() > 0) {
+            cursor.limit(query.getLimit());
+        }
+        return new CursorIterator<>(cursor, converter, type);
+    }
+
+}
@@ -5,6 +5,7 @@ import org.springframework.http.HttpHeaders;
 import org.joda.time.DateTime;
 import org.springframework.http.MediaType;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -44,4 +45,175 @@ public class HTTPOperations {
 
         return headers;
     }
+
+    /** Max no. of ranges honoured in a single Range header. */
+    public static final int MAX_RANGES = 32;
+
+    /**
+     * A satisfiable byte range of a resource, both ends inclusive.
+     */
+    public static class ByteRange {
+
+        public final long start;
+        public final long end;
+
+        public ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getLength() {
+            return end - start + 1;
+        }
+
+        /**
+         * Returns the value of the Content-Range header for this range.
+         * @param total the length of the whole resource.
+         * @return the header value.
+         */
+        public String toContentRange(long total) {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+    }
+
+    /**
+     * Parses a "bytes=" Range header against a resource of the given length.
+     * Unsatisfiable range specs are dropped.
+     * @param rangeHeader the Range header.
+     * @param length the length of the resource in bytes.
+     * @return the satisfiable ranges (empty if none is), or null if the header
+     * is absent, malformed or asks for too many ranges and should be ignored.
+     */
+    public static List<ByteRange> parseRangeHeader(String rangeHeader, long length) {
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = rangeHeader.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                final int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                final String first = spec.substring(0, dash).trim();
+                final String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes.
+                    final long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+                if (start < length) {
+                    ranges.add(new ByteRange(start, end));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the Amazon S3 ETags of the entity tags of an If-None-Match
+     * header, for conditional requests to S3. With a variant, only the tags
+     * of that variant of the objects are returned, without the variant.
+     * @param ifNoneMatch the header value, may be null.
+     * @param variant the variant appended to the ETags by toEntityTag(), or null.
+     * @return the ETags (or "*"), empty if there are none.
+     */
+    public static List<String> toS3ETags(String ifNoneMatch, String variant) {
+        List<String> etags = new ArrayList<>();
+        if (ifNoneMatch == null) {
+            return etags;
+        }
+        final String suffix = variant == null ? "\"" : "-" + variant + "\"";
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*")) {
+                etags.add(tag);
+            } else if (tag.length() > suffix.length() + 1 && tag.startsWith("\"")
+                    && tag.endsWith(suffix)) {
+                etags.add(tag.substring(1, tag.length() - suffix.length()));
+            }
+        }
+        return etags;
+    }
+
+    /**
+     * Returns the strong entity tag (quoted) for an Amazon S3 ETag.
+     * @param etag the S3 ETag.
+     * @return the entity tag, or null if etag is null.
+     */
+    public static String toEntityTag(String etag) {
+        if (etag == null) {
+            return null;
+        }
+        return etag.startsWith("\"") ? etag : "\"" + etag + "\"";
+    }
+
+    /**
+     * Checks the conditional headers of a GET request against the validators
+     * of a resource. If-None-Match takes precedence over If-Modified-Since.
+     * @param ifNoneMatch the If-None-Match header, or null.
+     * @param ifModifiedSince the If-Modified-Since header, or null.
+     * @param entityTag the entity tag of the resource.
+     * @param lastModified the last modified date of the resource.
+     * @return true if the client copy is current, i.e. 304 Not Modified.
+     */
+    public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, 
+            String entityTag, DateTime lastModified) {
+        if (ifNoneMatch != null) {
+            return matchesEntityTag(ifNoneMatch, entityTag);
+        }
+        try {
+            DateTime reqTime = DateOperations.parseHTTPDate(ifModifiedSince);
+            return reqTime != null && !DateOperations.checkIfModified(lastModified, reqTime);
+        } catch (IllegalArgumentException e) {
+            // Invalid dates are ignored.
+            return false;
+        }
+    }
+
+    /**
+     * Checks an If-None-Match header against the entity tag of a resource
+     * (weak comparison).
+     * @param ifNoneMatch the If-None-Match header.
+     * @param entityTag the entity tag of the resource.
+     * @return true if the header matches, i.e. the client copy is current.
+     */
+    public static boolean matchesEntityTag(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null || entityTag == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,45 @@
+package com.st.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+import javax.servlet.http.HttpServletResponse;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+
+/**
+ * Misc operations for writing JSON straight to a response with the
+ * streaming generator of Jackson, one element at a time.
+ */
+public class JSONOperations {
+
+    /** Same defaults as the JSON message converter, without a flush per value. */
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
+
+    /**
+     * Writes the elements of an iterator as a JSON array into the body of
+     * a response. Only the element being serialized is held in memory.
+     * @param items the elements.
+     * @param response the response.
+     * @return the number of elements written.
+     * @throws IOException if writing fails.
+     */
+    public static long writeArray(Iterator<?> items, HttpServletResponse response)
+            throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        JsonGenerator generator = MAPPER.getJsonFactory()
+                .createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        long count = 0;
+        generator.writeStartArray();
+        while (items.hasNext()) {
+            MAPPER.writeValue(generator, items.next());
+            count++;
+        }
+        generator.writeEndArray();
+        generator.flush();
+        return count;
+    }
+
+}
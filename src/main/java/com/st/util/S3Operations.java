@@ -0,0 +1,158 @@
+package com.st.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.st.model.FileMetadata;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import org.joda.time.DateTime;
+
+/**
+ * Misc operations for reading objects from Amazon S3 with conditional
+ * requests, so that the validators of a response are those of the version
+ * of the object actually read.
+ */
+public class S3Operations {
+
+    /**
+     * An object opened for reading, with the metadata of the version read.
+     * It has no content if the client copy is current or if only the
+     * metadata was asked for. It must be closed.
+     */
+    public static class StoredObject implements Closeable {
+
+        private final FileMetadata metadata;
+        private final S3ObjectInputStream content;
+        private final boolean notModified;
+        private boolean completed = false;
+
+        StoredObject(FileMetadata metadata, S3ObjectInputStream content, boolean notModified) {
+            this.metadata = metadata;
+            this.content = content;
+            this.notModified = notModified;
+        }
+
+        /**
+         * Returns the metadata of the version read.
+         * @return the metadata.
+         */
+        public FileMetadata getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * Returns true if the client copy matches the version read.
+         * @return true if the client copy is current.
+         */
+        public boolean isNotModified() {
+            return notModified;
+        }
+
+        /**
+         * Returns the content of the version read. The part of it not read is
+         * dropped on close.
+         * @return the content, or null if there is none.
+         */
+        public InputStream getContent() {
+            return content;
+        }
+
+        /**
+         * Copies the content into an output stream, which is not closed.
+         * @param out the stream to write to.
+         * @return the number of bytes written.
+         * @throws IOException if reading or writing fails.
+         */
+        public long writeTo(OutputStream out) throws IOException {
+            final long count = StreamOperations.copy(content, out);
+            completed = true;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (content == null) {
+                return;
+            }
+            if (completed) {
+                content.close();
+            } else {
+                // Partly read or client gone: drop the connection instead of
+                // draining the object.
+                content.abort();
+            }
+        }
+    }
+
+    /**
+     * Opens an object, unless the client copy is current. The object is
+     * requested with the entity tags (or else the date) of the client copy
+     * as If-None-Match (If-Modified-Since) constraints; when S3 answers not
+     * modified, the validators are taken from a HEAD request.
+     * @param s3Client the client.
+     * @param bucket the bucket.
+     * @param key the key of the object.
+     * @param etags the entity tags of the client copies, as stored by S3.
+     * @param modifiedSince the date of the client copy, or null.
+     * @param metadataOnly true to get the metadata only (HEAD requests).
+     * @return the object.
+     * @throws AmazonClientException if the object cannot be read, with
+     * status code 404 if it does not exist.
+     */
+    public static StoredObject open(AmazonS3Client s3Client, String bucket, String key,
+            List<String> etags, DateTime modifiedSince, boolean metadataOnly)
+            throws AmazonClientException {
+        if (!metadataOnly && !etags.contains("*")) {
+            GetObjectRequest request = new GetObjectRequest(bucket, key);
+            if (!etags.isEmpty()) {
+                request.setNonmatchingETagConstraints(etags);
+            } else if (modifiedSince != null) {
+                request.setModifiedSinceConstraint(modifiedSince.toDate());
+            }
+            S3Object object = s3Client.getObject(request);
+            if (object != null) {
+                return new StoredObject(toMetadata(key, object.getObjectMetadata()),
+                        object.getObjectContent(), false);
+            }
+        }
+        FileMetadata meta = toMetadata(key, s3Client.getObjectMetadata(bucket, key));
+        if (metadataOnly || isNotModified(meta, etags, modifiedSince)) {
+            return new StoredObject(meta, null, isNotModified(meta, etags, modifiedSince));
+        }
+        // Replaced between the two requests: the new version is served.
+        S3Object object = s3Client.getObject(new GetObjectRequest(bucket, key));
+        return new StoredObject(toMetadata(key, object.getObjectMetadata()),
+                object.getObjectContent(), false);
+    }
+
+    // Helper method to check the client copy against the metadata of an object,
+    // the entity tags taking precedence over the date
+    private static boolean isNotModified(FileMetadata meta, List<String> etags,
+            DateTime modifiedSince) {
+        if (!etags.isEmpty()) {
+            return etags.contains("*") || (meta.getEtag() != null
+                    && etags.contains(meta.getEtag().replace("\"", "")));
+        }
+        return modifiedSince != null
+                && !DateOperations.checkIfModified(meta.getLastModified(), modifiedSince);
+    }
+
+    // Helper method to build the metadata of an object from a response
+    private static FileMetadata toMetadata(String key, ObjectMetadata om) {
+        FileMetadata meta = new FileMetadata();
+        meta.setFilename(key);
+        meta.setLastModified(new DateTime(om.getLastModified()));
+        meta.setCreated(new DateTime(om.getLastModified()));
+        meta.setSize(om.getContentLength());
+        meta.setEtag(om.getETag());
+        return meta;
+    }
+
+}
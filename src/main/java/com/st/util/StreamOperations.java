@@ -0,0 +1,77 @@
+package com.st.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Misc operations for copying streams without holding their contents in memory.
+ */
+public class StreamOperations {
+
+    /** Size of the copy buffer of each thread. */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** One small copy buffer per (pooled) request thread. */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Copies an input stream into an output stream using the
+     * buffer of the current thread. Neither stream is closed.
+     * @param in the stream to read from.
+     * @param out the stream to write to.
+     * @return the number of bytes copied.
+     * @throws IOException if reading or writing fails.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = BUFFERS.get();
+        long count = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Transfers a region of a file into an output stream with
+     * FileChannel.transferTo. The target is a channel wrapping the output
+     * stream, not a socket, so there is no sendfile: the JDK copies the
+     * region through an 8 KB heap buffer. Only the
+     * region is read, and it is never held in memory as a whole. The output
+     * stream is not closed.
+     * @param file the file to read from.
+     * @param position the first byte to transfer.
+     * @param count the number of bytes to transfer.
+     * @param out the stream to write to.
+     * @return the number of bytes transferred.
+     * @throws IOException if the file is shorter than expected, or if reading or writing fails.
+     */
+    public static long transfer(File file, long position, long count, OutputStream out) 
+            throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long done = 0;
+            while (done < count) {
+                final long n = channel.transferTo(position + done, count - done, target);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of file " + file);
+                }
+                done += n;
+            }
+            return done;
+        }
+    }
+
+}
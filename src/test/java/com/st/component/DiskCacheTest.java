@@ -0,0 +1,147 @@
+package com.st.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the least-recently-used eviction, the ETag validation and the
+ * fills of the disk cache.
+ */
+public class DiskCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiskCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new DiskCache(folder.getRoot().getPath(), 100);
+    }
+
+    /**
+     * Tests that the least recently used entries are evicted to fit the budget.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        DiskCache.Entry a = put("a", "ea", 40);
+        put("b", "eb", 40);
+        // a is now more recently used than b.
+        assertNotNull(cache.get("a", "ea"));
+        put("c", "ec", 40);
+        assertNull(cache.get("b", "eb"));
+        assertNotNull(cache.get("a", "ea"));
+        assertNotNull(cache.get("c", "ec"));
+        assertTrue(a.file.exists());
+        assertEquals(80, cache.getStatistics().getUsedBytes());
+        assertEquals(1, cache.getStatistics().getEvictions());
+    }
+
+    /**
+     * Tests that the files of evicted entries are deleted.
+     */
+    @Test
+    public void testDeletesEvictedFiles() throws IOException {
+        DiskCache.Entry a = put("a", "ea", 60);
+        put("b", "eb", 60);
+        assertFalse(a.file.exists());
+        assertEquals(1, cache.getStatistics().getEntries());
+    }
+
+    /**
+     * Tests that an entry larger than the budget is not filled.
+     */
+    @Test
+    public void testOversizedEntry() throws IOException {
+        put("a", "ea", 40);
+        assertNull(cache.fill("b", "eb", 150));
+        assertNotNull(cache.get("a", "ea"));
+        assertFalse(cache.accepts(150));
+        assertTrue(cache.accepts(100));
+    }
+
+    /**
+     * Tests that a key is filled by one fill at a time.
+     */
+    @Test
+    public void testSingleFill() throws IOException {
+        DiskCache.Fill fill = cache.fill("a", "ea", 10);
+        assertNotNull(fill);
+        assertNull(cache.fill("a", "ea", 10));
+        assertNotNull(cache.fill("b", "eb", 10));
+        fill.write(new byte[10], 0, 10);
+        assertEquals(10, fill.commit().size);
+        assertNotNull(cache.get("a", "ea"));
+        assertNotNull(cache.fill("a", "ea", 10));
+    }
+
+    /**
+     * Tests that an aborted fill stores nothing and frees its key.
+     */
+    @Test
+    public void testAbortedFill() throws IOException {
+        DiskCache.Fill fill = cache.fill("a", "ea", 10);
+        fill.write(new byte[5], 0, 5);
+        fill.abort();
+        assertNull(fill.commit());
+        assertNull(cache.get("a", "ea"));
+        assertEquals(0, cache.getStatistics().getUsedBytes());
+        assertEquals(0, folder.getRoot().list().length);
+        assertNotNull(cache.fill("a", "ea", 10));
+    }
+
+    /**
+     * Tests that replacing a key releases the bytes of the old entry.
+     */
+    @Test
+    public void testReplace() throws IOException {
+        DiskCache.Entry old = put("a", "e1", 60);
+        put("a", "e2", 30);
+        assertFalse(old.file.exists());
+        assertEquals(30, cache.getStatistics().getUsedBytes());
+        assertEquals(0, cache.getStatistics().getEvictions());
+    }
+
+    /**
+     * Tests that an entry is a miss, and is dropped, for another ETag.
+     */
+    @Test
+    public void testStaleEtag() throws IOException {
+        DiskCache.Entry a = put("a", "e1", 10);
+        assertNull(cache.get("a", "e2"));
+        assertFalse(a.file.exists());
+        assertNull(cache.get("a", "e1"));
+        assertEquals(0, cache.getStatistics().getUsedBytes());
+    }
+
+    /**
+     * Tests invalidation.
+     */
+    @Test
+    public void testInvalidate() throws IOException {
+        DiskCache.Entry a = put("a", "ea", 10);
+        cache.invalidate("a");
+        assertFalse(a.file.exists());
+        assertNull(cache.get("a", "ea"));
+        assertEquals(0, cache.getStatistics().getUsedBytes());
+    }
+
+    // Helper method to store an entry of the given size
+    private DiskCache.Entry put(String key, String etag, int size) throws IOException {
+        DiskCache.Fill fill = cache.fill(key, etag, size);
+        fill.write(new byte[size], 0, size);
+        DiskCache.Entry entry = fill.commit();
+        assertEquals(size, entry.size);
+        return entry;
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.st.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests of the expiry, invalidation and size bound of the expiring cache.
+ */
+public class ExpiringCacheTest {
+
+    /**
+     * Tests a hit and a miss.
+     */
+    @Test
+    public void testGet() {
+        ExpiringCache<String> cache = new ExpiringCache<>(60, 10);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getStatistics().getHits());
+        assertEquals(1, cache.getStatistics().getMisses());
+    }
+
+    /**
+     * Tests that a time to live of 0 disables the cache.
+     */
+    @Test
+    public void testDisabled() {
+        ExpiringCache<String> cache = new ExpiringCache<>(0, 10);
+        cache.put("a", "1");
+        assertNull(cache.get("a"));
+    }
+
+    /**
+     * Tests invalidation of a key and of all keys.
+     */
+    @Test
+    public void testInvalidate() {
+        ExpiringCache<String> cache = new ExpiringCache<>(60, 10);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        cache.invalidateAll();
+        assertNull(cache.get("b"));
+    }
+
+    /**
+     * Tests that a full cache is emptied to make room.
+     */
+    @Test
+    public void testMaxEntries() {
+        ExpiringCache<String> cache = new ExpiringCache<>(60, 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertEquals(1, cache.getStatistics().getEntries());
+        assertEquals(2, cache.getStatistics().getEvictions());
+        assertEquals("3", cache.get("c"));
+    }
+
+}
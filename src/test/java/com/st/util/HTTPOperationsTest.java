@@ -0,0 +1,171 @@
+package com.st.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.st.util.HTTPOperations.ByteRange;
+import java.util.Arrays;
+import java.util.List;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+/**
+ * Tests of the Range header parsing and the conditional request checks.
+ */
+public class HTTPOperationsTest {
+
+    /**
+     * Tests a range with both ends.
+     */
+    @Test
+    public void testClosedRange() {
+        List<ByteRange> ranges = HTTPOperations.parseRangeHeader("bytes=0-99", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 99);
+        assertEquals(100, ranges.get(0).getLength());
+        assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(1000));
+    }
+
+    /**
+     * Tests that the end of a range is clamped to the resource.
+     */
+    @Test
+    public void testRangeBeyondEnd() {
+        List<ByteRange> ranges = HTTPOperations.parseRangeHeader("bytes=900-2000", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 900, 999);
+    }
+
+    /**
+     * Tests an open-ended range.
+     */
+    @Test
+    public void testOpenEndedRange() {
+        List<ByteRange> ranges = HTTPOperations.parseRangeHeader("bytes=500-", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 500, 999);
+    }
+
+    /**
+     * Tests suffix ranges, including one longer than the resource.
+     */
+    @Test
+    public void testSuffixRange() {
+        List<ByteRange> ranges = HTTPOperations.parseRangeHeader("bytes=-100", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 900, 999);
+        ranges = HTTPOperations.parseRangeHeader("bytes=-5000", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 999);
+    }
+
+    /**
+     * Tests a header with several ranges, with spaces around them.
+     */
+    @Test
+    public void testMultipleRanges() {
+        List<ByteRange> ranges = HTTPOperations.parseRangeHeader("bytes=0-9, 20-29 ,-10", 1000);
+        assertEquals(3, ranges.size());
+        assertRange(ranges.get(0), 0, 9);
+        assertRange(ranges.get(1), 20, 29);
+        assertRange(ranges.get(2), 990, 999);
+    }
+
+    /**
+     * Tests that unsatisfiable ranges are dropped, and that a header with
+     * no satisfiable range gives an empty list (416).
+     */
+    @Test
+    public void testUnsatisfiableRanges() {
+        List<ByteRange> ranges = HTTPOperations.parseRangeHeader("bytes=0-9,1000-1099", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 9);
+        assertTrue(HTTPOperations.parseRangeHeader("bytes=1000-", 1000).isEmpty());
+        assertTrue(HTTPOperations.parseRangeHeader("bytes=-0", 1000).isEmpty());
+        assertTrue(HTTPOperations.parseRangeHeader("bytes=0-", 0).isEmpty());
+    }
+
+    /**
+     * Tests that absent, malformed and oversized headers are ignored.
+     */
+    @Test
+    public void testIgnoredHeaders() {
+        assertNull(HTTPOperations.parseRangeHeader(null, 1000));
+        assertNull(HTTPOperations.parseRangeHeader("items=0-9", 1000));
+        assertNull(HTTPOperations.parseRangeHeader("bytes=10", 1000));
+        assertNull(HTTPOperations.parseRangeHeader("bytes=a-b", 1000));
+        assertNull(HTTPOperations.parseRangeHeader("bytes=20-10", 1000));
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= HTTPOperations.MAX_RANGES; i++) {
+            header.append(",").append(i).append("-").append(i);
+        }
+        assertNull(HTTPOperations.parseRangeHeader(header.toString(), 1000));
+    }
+
+    /**
+     * Tests the weak comparison of If-None-Match, lists of tags and "*".
+     */
+    @Test
+    public void testMatchesEntityTag() {
+        assertTrue(HTTPOperations.matchesEntityTag("\"abc\"", "\"abc\""));
+        assertTrue(HTTPOperations.matchesEntityTag("W/\"abc\"", "\"abc\""));
+        assertTrue(HTTPOperations.matchesEntityTag("\"x\", W/\"abc\" ,\"y\"", "\"abc\""));
+        assertTrue(HTTPOperations.matchesEntityTag("*", "\"abc\""));
+        assertFalse(HTTPOperations.matchesEntityTag("\"abd\"", "\"abc\""));
+        assertFalse(HTTPOperations.matchesEntityTag("abc", "\"abc\""));
+        assertFalse(HTTPOperations.matchesEntityTag(null, "\"abc\""));
+        assertFalse(HTTPOperations.matchesEntityTag("*", null));
+    }
+
+    /**
+     * Tests that the entity tags of If-None-Match are turned into S3 ETags,
+     * keeping only those of the given variant.
+     */
+    @Test
+    public void testToS3ETags() {
+        assertEquals(Arrays.asList("abc", "def"),
+                HTTPOperations.toS3ETags("\"abc\", W/\"def\"", null));
+        assertEquals(Arrays.asList("abc"),
+                HTTPOperations.toS3ETags("\"abc-png\", \"abc\", \"abc-gif\"", "png"));
+        assertEquals(Arrays.asList("*"), HTTPOperations.toS3ETags("*", "png"));
+        assertTrue(HTTPOperations.toS3ETags("abc, \"-png\"", "png").isEmpty());
+        assertTrue(HTTPOperations.toS3ETags(null, null).isEmpty());
+    }
+
+    /**
+     * Tests that S3 ETags are quoted once.
+     */
+    @Test
+    public void testToEntityTag() {
+        assertEquals("\"abc\"", HTTPOperations.toEntityTag("abc"));
+        assertEquals("\"abc\"", HTTPOperations.toEntityTag("\"abc\""));
+        assertNull(HTTPOperations.toEntityTag(null));
+    }
+
+    /**
+     * Tests If-Modified-Since, and that If-None-Match takes precedence.
+     */
+    @Test
+    public void testIsNotModified() {
+        DateTime modified = new DateTime(2014, 3, 1, 12, 0, 0, 500);
+        String same = DateOperations.getHTTPDateSafely(modified);
+        String before = DateOperations.getHTTPDateSafely(modified.minusSeconds(1));
+        assertTrue(HTTPOperations.isNotModified(null, same, "\"abc\"", modified));
+        assertFalse(HTTPOperations.isNotModified(null, before, "\"abc\"", modified));
+        assertFalse(HTTPOperations.isNotModified(null, null, "\"abc\"", modified));
+        assertFalse(HTTPOperations.isNotModified(null, "yesterday", "\"abc\"", modified));
+        // The default of the If-Modified-Since header of the file endpoint.
+        assertFalse(HTTPOperations.isNotModified(null, "", "\"abc\"", modified));
+        assertTrue(HTTPOperations.isNotModified("\"abc\"", before, "\"abc\"", modified));
+        assertFalse(HTTPOperations.isNotModified("\"abd\"", same, "\"abc\"", modified));
+    }
+
+    // Helper method to check the ends of a range
+    private static void assertRange(ByteRange range, long start, long end) {
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+    }
+
+}